@@ -0,0 +1,638 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only archive of serialized graphs, each stored under a long key
+ * Graphs are appended as records to the newest segment file, which is sealed once it reaches the
+ * segment size. An index in memory maps each key to the segment, offset, and length of its latest
+ * record, so getting a graph costs one index lookup and a read of the record through the
+ * memory-mapped segment, however large the archive is
+ *
+ * Layout of a segment file:
+ *      - Magic "OSAR" and int version
+ *      - Each record: long key, int length of the graph (-1 for a removal), int CRC32 of the
+ *        graph, then the graph as written by a Serializer in any format
+ *
+ * Each sealed segment has a hint file listing the key, offset, and length of its records, so
+ * the index is rebuilt on open without reading the segments. The newest segment is scanned
+ * instead, and a record torn by a crash at its end is cut off, as is a file header torn by a
+ * crash right after the segment was created
+ *
+ * Storing a key again or removing it supersedes its earlier record; compaction copies the
+ * records still in use out of mostly superseded segments and deletes them
+ *
+ * @author Sukhjot Sekhon
+ */
+public class ArchiveStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private static final byte[] SEGMENT_MAGIC = {'O', 'S', 'A', 'R'};
+    private static final byte[] HINT_MAGIC = {'O', 'S', 'A', 'H'};
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 8; // Magic and version
+    private static final int RECORD_HEADER = 16; // Key, length, and CRC
+    private static final int REMOVED = -1; // Length of a removal record
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String HINT_SUFFIX = ".hint";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>(); // By number, oldest first
+    private Segment active; // Newest segment, the only one written to
+    private final RecordIndex index = new RecordIndex();
+    private int liveCount; // Keys not removed
+    private long nextKey; // Key given to the next appended graph
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER);
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    private final Serializer serializer = new Serializer();
+    private volatile Deserializer deserializer = new LazyDeserializer(); // Builds only the objects used
+
+    /**
+     * Segment file of the archive
+     */
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        long size; // Bytes of complete records, file header included
+        long liveBytes; // Bytes of records that are the latest of their key
+        boolean sealed;
+        private MappedByteBuffer map; // Read-only mapping; remapped when a read passes its end
+
+        Segment(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        /**
+         * Gets a view of part of the segment through its mapping
+         * @param position position of the first byte
+         * @param length number of bytes
+         * @return buffer over the bytes; independent of any other view
+         */
+        ByteBuffer view(long position, int length) throws IOException {
+            if (map == null || map.capacity() < position + length) map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer view = map.duplicate();
+            view.limit((int) position + length).position((int) position);
+            return view.slice();
+        }
+    }
+
+    /**
+     * Opens an archive with segments of the default size
+     * @param directory directory holding the segments; created if missing
+     */
+    public ArchiveStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens an archive, rebuilding the index from its hint files and newest segment
+     * @param directory directory holding the segments; created if missing
+     * @param segmentSize size at which a segment is sealed; at most 2 GB, since segments are
+     *                    mapped whole. A larger graph gets a segment of its own
+     */
+    public ArchiveStore(Path directory, long segmentSize) throws IOException {
+        if (segmentSize <= FILE_HEADER + RECORD_HEADER || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        ArrayList<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring " + file + " in archive");
+                }
+            }
+        }
+        Collections.sort(numbers);
+
+        for (int i = 0; i < numbers.size(); i++) {
+            int number = numbers.get(i);
+            Path path = segmentPath(number);
+            Segment segment = new Segment(number, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segments.put(number, segment);
+            if (i == numbers.size() - 1) {
+                scan(segment, true);
+                active = segment;
+            } else {
+                segment.sealed = true;
+                if (!loadHints(segment)) {
+                    scan(segment, false);
+                    writeHints(segment);
+                }
+            }
+        }
+        if (active == null) active = createSegment(1);
+    }
+
+    /**
+     * Serializes an object in the binary format and stores its graph under a key
+     * @param key key of the graph; replaces any graph stored under it
+     * @param obj root object of the graph
+     */
+    public void put(long key, Object obj) throws IOException {
+        SessionPool sessions = serializer.getSessionPool();
+        SerializationSession session = sessions.acquire();
+        try {
+            FrameBuffer graph = session.getBuffer();
+            serializer.serialize(Collections.singletonList(obj), GraphFormat.BINARY.newWriter(graph), session);
+            put(key, graph.array(), 0, graph.size());
+        } finally {
+            sessions.release(session);
+        }
+    }
+
+    /**
+     * Stores a serialized graph under a key, such as a graph as it was received
+     * @param key key of the graph; replaces any graph stored under it
+     * @param graph buffer holding the graph in any format
+     * @param offset position of the first byte
+     * @param length number of bytes
+     */
+    public synchronized void put(long key, byte[] graph, int offset, int length) throws IOException {
+        append(key, ByteBuffer.wrap(graph, offset, length), length);
+    }
+
+    /**
+     * Stores a serialized graph under the key after the largest key stored so far
+     * @param graph buffer holding the graph in any format
+     * @param offset position of the first byte
+     * @param length number of bytes
+     * @return key the graph was stored under
+     */
+    public synchronized long append(byte[] graph, int offset, int length) throws IOException {
+        long key = nextKey;
+        put(key, graph, offset, length);
+        return key;
+    }
+
+    /**
+     * Gets the object with ID 1 of a stored graph, which is the first root of graphs written
+     * by a Serializer (and of every graph stored with put(long, Object))
+     * @param key key of the graph
+     * @return root object, or null if nothing is stored under the key
+     */
+    public Object get(long key) throws IOException {
+        Map<Integer, Object> graph = getGraph(key);
+        return graph == null ? null : graph.get(1);
+    }
+
+    /**
+     * Gets one object of a stored graph
+     * With the default LazyDeserializer this builds only the object and those it reaches,
+     * reading them in place from the mapped segment
+     * @param key key of the graph
+     * @param id ID of the object in the graph
+     * @return object, or null if nothing is stored under the key or the graph has no such object
+     */
+    public Object get(long key, int id) throws IOException {
+        Map<Integer, Object> graph = getGraph(key);
+        return graph == null ? null : graph.get(id);
+    }
+
+    /**
+     * Deserializes a stored graph straight from the mapped segment
+     * With the default LazyDeserializer the graph is a LazyGraph, which builds each object the
+     * first time it is read and keeps reading the mapped segment until then
+     * @param key key of the graph
+     * @return objects of the graph by ID, or null if nothing is stored under the key
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Integer, Object> getGraph(long key) throws IOException {
+        ByteBuffer graph = read(key);
+        if (graph == null) return null;
+        return (Map<Integer, Object>) deserializer.deserialize(graph);
+    }
+
+    /**
+     * Gets a stored graph without deserializing it
+     * @param key key of the graph
+     * @return read-only buffer over the serialized graph, or null if nothing is stored under the key
+     */
+    public synchronized ByteBuffer read(long key) throws IOException {
+        ensureOpen();
+        int slot = index.find(key);
+        if (slot < 0 || index.lengths[slot] == REMOVED) return null;
+        long location = index.locations[slot];
+        return segments.get(segmentOf(location)).view(offsetOf(location) + RECORD_HEADER, index.lengths[slot]);
+    }
+
+    /**
+     * Removes the graph stored under a key
+     * @param key key of the graph
+     * @return true if a graph was stored under the key
+     */
+    public synchronized boolean remove(long key) throws IOException {
+        if (!contains(key)) return false;
+        append(key, null, REMOVED);
+        return true;
+    }
+
+    public synchronized boolean contains(long key) {
+        int slot = index.find(key);
+        return slot >= 0 && index.lengths[slot] != REMOVED;
+    }
+
+    /**
+     * Gets the number of graphs stored
+     * @return number of keys with a graph
+     */
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * Sets the deserializer of stored graphs
+     * The default LazyDeserializer only builds the objects of a graph that are used; a LazyGraph
+     * keeps reading the mapped segment, so no record is copied to the heap. A Deserializer
+     * builds every object of a graph as soon as it is read
+     * @param deserializer deserializer reading the graphs
+     */
+    public void setDeserializer(Deserializer deserializer) {
+        this.deserializer = deserializer;
+    }
+
+    /**
+     * Compacts every sealed segment where at least half the bytes are superseded records
+     * @return number of segments compacted
+     */
+    public int compact() throws IOException {
+        return compact(0.5);
+    }
+
+    /**
+     * Copies the records still in use out of mostly superseded sealed segments, then deletes them
+     * Removals are only copied while an older segment could still hold a record they supersede.
+     * The copies are forced to the storage device before any segment is deleted, so a crash
+     * during compaction never loses a record that was already durable
+     * @param minGarbage smallest share of superseded bytes, from 0 to 1, for a segment to be compacted
+     * @return number of segments compacted
+     */
+    public synchronized int compact(double minGarbage) throws IOException {
+        ensureOpen();
+        int firstCopy = active.number; // Copies go to this segment and any created after it
+        ArrayList<Segment> compacted = new ArrayList<>();
+        boolean kept = false; // True once a segment older than the current one is kept
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (!segment.sealed) continue;
+            long recordBytes = segment.size - FILE_HEADER;
+            if (recordBytes > 0 && (double) (recordBytes - segment.liveBytes) / recordBytes < minGarbage) {
+                kept = true;
+                continue;
+            }
+
+            boolean older = kept;
+            ByteBuffer records = segment.view(0, (int) segment.size);
+            int position = FILE_HEADER;
+            while (position < segment.size) {
+                long key = records.getLong(position);
+                int length = records.getInt(position + 8);
+                int slot = index.find(key);
+                if (slot >= 0 && index.locations[slot] == locationOf(segment.number, position)) {
+                    if (length != REMOVED) {
+                        ByteBuffer graph = records.duplicate();
+                        graph.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+                        append(key, graph, length);
+                    } else if (older) {
+                        append(key, null, REMOVED);
+                    }
+                }
+                position += RECORD_HEADER + Math.max(length, 0);
+            }
+            compacted.add(segment);
+        }
+        if (compacted.isEmpty()) return 0;
+
+        // Segments sealed while copying already have their hints written and forced
+        for (Segment copy : segments.tailMap(firstCopy, true).values()) copy.channel.force(false);
+        for (Segment segment : compacted) {
+            segments.remove(segment.number);
+            segment.channel.close();
+            Files.delete(segment.path);
+            Files.deleteIfExists(hintPath(segment.number));
+        }
+        return compacted.size();
+    }
+
+    /**
+     * Forces every appended record to the storage device
+     */
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        active.channel.force(false);
+    }
+
+    /**
+     * Closes every segment; the newest one is scanned again when the archive is reopened
+     */
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (Segment segment : segments.values()) segment.channel.close();
+    }
+
+    /**
+     * Appends a record to the active segment and indexes it, sealing the segment first if the
+     * record would take it past the segment size
+     * @param key key of the record
+     * @param graph serialized graph to append; ignored for removals
+     * @param length length of the graph, or REMOVED
+     */
+    private void append(long key, ByteBuffer graph, int length) throws IOException {
+        ensureOpen();
+        int recordSize = RECORD_HEADER + Math.max(length, 0);
+        if (active.size + recordSize > segmentSize && active.size > FILE_HEADER) {
+            active.sealed = true;
+            active.channel.force(false); // Records reach the device before the hints pointing at them
+            writeHints(active);
+            active = createSegment(active.number + 1);
+        }
+
+        int checksum = 0;
+        if (length > 0) {
+            crc.reset();
+            crc.update(graph.duplicate());
+            checksum = (int) crc.getValue();
+        }
+        recordHeader.clear();
+        recordHeader.putLong(key).putInt(length).putInt(checksum).flip();
+        ByteBuffer[] record = length > 0 ? new ByteBuffer[] {recordHeader, graph.duplicate()} : new ByteBuffer[] {recordHeader};
+
+        long position = active.size;
+        active.channel.position(position);
+        long written = 0;
+        while (written < recordSize) written += active.channel.write(record);
+        active.size += recordSize;
+        index(key, active, (int) position, length);
+    }
+
+    /**
+     * Points a key at a record, taking the record it supersedes out of its segment's live bytes
+     */
+    private void index(long key, Segment segment, int offset, int length) {
+        int slot = index.find(key);
+        if (slot >= 0 && index.lengths[slot] != REMOVED) {
+            Segment superseded = segments.get(segmentOf(index.locations[slot]));
+            if (superseded != null) superseded.liveBytes -= RECORD_HEADER + index.lengths[slot];
+            liveCount--;
+        }
+        index.put(key, locationOf(segment.number, offset), length);
+        if (length != REMOVED) {
+            segment.liveBytes += RECORD_HEADER + length;
+            liveCount++;
+        }
+        if (key >= nextKey) nextKey = key + 1;
+    }
+
+    /**
+     * Indexes every record of a segment by reading their headers
+     * @param segment segment to read
+     * @param newest true for the newest segment, whose records are checked and whose torn
+     *               last record is cut off; false for a sealed segment, which must be intact
+     */
+    private void scan(Segment segment, boolean newest) throws IOException {
+        long fileSize = segment.channel.size();
+        segment.size = fileSize;
+        if (newest && fileSize < FILE_HEADER && isHeaderPrefix(segment.view(0, (int) fileSize))) {
+            // Created just before a crash, so it holds no record yet
+            System.out.println("Rewrote the torn header of " + segment.path);
+            segment.map = null;
+            segment.channel.truncate(0);
+            writeHeader(segment.channel);
+            segment.size = FILE_HEADER;
+            return;
+        }
+        checkHeader(segment.view(0, (int) Math.min(fileSize, FILE_HEADER)), SEGMENT_MAGIC, segment.path);
+
+        ByteBuffer records = segment.view(0, (int) fileSize);
+        int position = FILE_HEADER;
+        while (position < fileSize) {
+            if (fileSize - position < RECORD_HEADER) break;
+            long key = records.getLong(position);
+            int length = records.getInt(position + 8);
+            if (length < REMOVED || length > fileSize - position - RECORD_HEADER) break;
+            if (newest && length > 0) {
+                ByteBuffer graph = records.duplicate();
+                graph.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+                crc.reset();
+                crc.update(graph);
+                if ((int) crc.getValue() != records.getInt(position + 12)) break;
+            }
+            index(key, segment, position, length);
+            position += RECORD_HEADER + Math.max(length, 0);
+        }
+
+        if (position < fileSize) {
+            if (!newest) throw new IOException("Archive segment " + segment.path + " is corrupt at " + position);
+            System.out.println("Cut off a torn record at the end of " + segment.path);
+            segment.map = null; // Never read past the new end
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    /**
+     * Writes the hint file of a sealed segment, replacing it atomically
+     * The file is forced before it replaces the old one, so a hint file on disk is always complete
+     */
+    private void writeHints(Segment segment) throws IOException {
+        ByteBuffer records = segment.view(0, (int) segment.size);
+        Path temp = directory.resolve(hintPath(segment.number).getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.write(HINT_MAGIC);
+            out.writeInt(VERSION);
+            int position = FILE_HEADER;
+            while (position < segment.size) {
+                int length = records.getInt(position + 8);
+                out.writeLong(records.getLong(position));
+                out.writeInt(position);
+                out.writeInt(length);
+                position += RECORD_HEADER + Math.max(length, 0);
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temp, hintPath(segment.number), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Indexes the records of a sealed segment from its hint file
+     * @return false if the segment has no usable hint file
+     */
+    private boolean loadHints(Segment segment) throws IOException {
+        ByteBuffer hints;
+        try {
+            hints = ByteBuffer.wrap(Files.readAllBytes(hintPath(segment.number)));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try {
+            checkHeader(hints, HINT_MAGIC, hintPath(segment.number));
+        } catch (IOException e) {
+            System.out.println(e.getMessage() + "; scanning the segment instead");
+            return false;
+        }
+        segment.size = segment.channel.size();
+        for (int entry = FILE_HEADER; entry + RECORD_HEADER <= hints.limit(); entry += RECORD_HEADER)
+            index(hints.getLong(entry), segment, hints.getInt(entry + 8), hints.getInt(entry + 12));
+        return true;
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        Path path = segmentPath(number);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeHeader(channel);
+
+        Segment segment = new Segment(number, path, channel);
+        segment.size = FILE_HEADER;
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private static ByteBuffer segmentHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        header.put(SEGMENT_MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = segmentHeader();
+        while (header.hasRemaining()) channel.write(header, header.position());
+    }
+
+    /**
+     * Checks whether the bytes of a segment shorter than its header are the start of a header
+     */
+    private static boolean isHeaderPrefix(ByteBuffer bytes) {
+        ByteBuffer header = segmentHeader();
+        for (int i = 0; i < bytes.limit(); i++) {
+            if (bytes.get(i) != header.get(i)) return false;
+        }
+        return true;
+    }
+
+    private static void checkHeader(ByteBuffer header, byte[] magic, Path path) throws IOException {
+        if (header.limit() < FILE_HEADER) throw new IOException(path + " is not part of an archive");
+        for (int i = 0; i < magic.length; i++) {
+            if (header.get(i) != magic[i]) throw new IOException(path + " is not part of an archive");
+        }
+        int version = header.getInt(magic.length);
+        if (version != VERSION) throw new IOException("Unsupported archive version " + version + " of " + path);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Archive is closed");
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    private Path hintPath(int number) {
+        return directory.resolve(String.format("%08d", number) + HINT_SUFFIX);
+    }
+
+    private static long locationOf(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Location and length of the latest record of each key
+     * Open addressing with linear probing over parallel arrays, like IdentityHandleTable, so
+     * keys and locations are never boxed. Keys are never deleted; a removed key keeps the
+     * location of its removal record
+     */
+    private static final class RecordIndex {
+        private long[] keys = new long[64];
+        long[] locations = new long[64]; // Segment number and offset of the record; 0 for an empty slot
+        int[] lengths = new int[64];
+        private int size;
+
+        /**
+         * @return slot of the key, or -1 if it was never stored
+         */
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = indexFor(key, mask); ; i = (i + 1) & mask) {
+                if (locations[i] == 0) return -1;
+                if (keys[i] == key) return i;
+            }
+        }
+
+        void put(long key, long location, int length) {
+            int mask = keys.length - 1;
+            int i = indexFor(key, mask);
+            while (locations[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+            if (locations[i] == 0) {
+                if (size + 1 > keys.length / 2) {
+                    resize();
+                    put(key, location, length); // Counts the key in the resized table
+                    return;
+                }
+                size++;
+            }
+            keys[i] = key;
+            locations[i] = location;
+            lengths[i] = length;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldLocations = locations;
+            int[] oldLengths = lengths;
+            keys = new long[oldKeys.length * 2];
+            locations = new long[oldKeys.length * 2];
+            lengths = new int[oldKeys.length * 2];
+
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldLocations[j] == 0) continue;
+                int i = indexFor(oldKeys[j], mask);
+                while (locations[i] != 0) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                locations[i] = oldLocations[j];
+                lengths[i] = oldLengths[j];
+            }
+        }
+
+        private static int indexFor(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads sequential keys
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reads a graph written by BinaryGraphWriter and rebuilds it with a GraphBuilder
+ * Class definitions are resolved against local classes once per stream, so each
+ * object's fields are set without any name lookups
+ *
+ * A graph held in memory or in a buffer can also be indexed without being built, and the
+ * contents of single objects populated later from their position (see LazyGraph)
+ *
+ * @author Sukhjot Sekhon
+ */
+public class BinaryGraphReader {
+    private final InputStream in; // Null when the whole graph is in buf or mapped
+    private byte[] buf; // Grown from a stream only to hold the elements of a large array
+    private final ByteBuffer mapped; // Graph read in place, such as a memory-mapped file; null otherwise
+    private int pos;
+    private int limit;
+    private final ArrayList<ClassEntry> classTable = new ArrayList<>();
+
+    /**
+     * Class definition read from the stream
+     */
+    static final class ClassEntry {
+        String name;
+        Class type; // Resolved once, when the class is defined
+        int kind;
+        byte elementType; // Type code of array elements, or of the value of value objects
+        byte[] fieldTypes;
+        FieldAccessor[] fields; // Local field for each wire field; null if the local class lacks it
+    }
+
+    /**
+     * @param in stream positioned at the magic header
+     */
+    public BinaryGraphReader(InputStream in) {
+        this.in = in;
+        buf = new byte[8192];
+        mapped = null;
+    }
+
+    /**
+     * Reads a graph held in memory, without copying it
+     * @param bytes buffer holding the graph
+     * @param offset position of the magic header
+     * @param length number of bytes of the graph
+     */
+    public BinaryGraphReader(byte[] bytes, int offset, int length) {
+        in = null;
+        buf = bytes;
+        mapped = null;
+        pos = offset;
+        limit = offset + length;
+    }
+
+    /**
+     * Reads a graph held in a buffer in place, without copying it to the heap
+     * Positions given to an Index are positions in the buffer
+     * @param graph buffer holding the graph from its position to its limit; its position is not moved
+     */
+    public BinaryGraphReader(ByteBuffer graph) {
+        in = null;
+        buf = new byte[8192]; // Primitive arrays are copied out through it a block at a time
+        mapped = graph;
+        pos = graph.position();
+        limit = graph.limit();
+    }
+
+    /**
+     * Reads the whole graph
+     * @param builder builder receiving the objects
+     * @return HashMap containing deserialized objects
+     */
+    public HashMap<Integer, Object> read(GraphBuilder builder) throws IOException {
+        readHeader();
+        int tag;
+        while ((tag = readByte()) != BinaryGraphWriter.TAG_END) {
+            if (tag == BinaryGraphWriter.TAG_OBJECT) readObject(builder, false);
+            else if (tag == BinaryGraphWriter.TAG_UPDATE) readObject(builder, true);
+            else if (tag == BinaryGraphWriter.TAG_REMOVE) builder.remove(readVarint());
+            else if (tag == BinaryGraphWriter.TAG_RESET) classTable.clear(); // Next fragment defines its own classes
+            else throw new IOException("Unexpected tag " + tag);
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Reads every object of a graph held in memory without building any, noting where the
+     * contents of each one start
+     * Only whole graphs can be indexed; the updates and removals of a delta need the graph they apply to
+     * @param resolver resolves the classes of the objects
+     * @param index receives every object
+     */
+    void index(ClassResolver resolver, Index index) throws IOException {
+        if (in != null) throw new IllegalStateException("Only a graph held in memory can be indexed");
+        readHeader();
+        int tag;
+        while ((tag = readByte()) != BinaryGraphWriter.TAG_END) {
+            if (tag == BinaryGraphWriter.TAG_OBJECT) {
+                int id = readVarint();
+                ClassEntry entry = readClassReference(resolver);
+                int length = hasLength(entry) ? readLength(entry) : -1;
+                index.add(id, entry, length, pos);
+                skipContent(entry, length);
+            } else if (tag == BinaryGraphWriter.TAG_RESET) {
+                classTable.clear();
+            } else if (tag == BinaryGraphWriter.TAG_UPDATE || tag == BinaryGraphWriter.TAG_REMOVE) {
+                throw new IOException("A delta cannot be indexed without the graph it applies to");
+            } else {
+                throw new IOException("Unexpected tag " + tag);
+            }
+        }
+    }
+
+    /**
+     * Receives the objects of an indexed graph
+     */
+    interface Index {
+        /**
+         * @param id ID of the object
+         * @param entry class of the object
+         * @param length number of elements for arrays, collections, and maps; -1 otherwise
+         * @param position position in the buffer of the object's contents
+         */
+        void add(int id, ClassEntry entry, int length, int position);
+    }
+
+    /**
+     * Sets the fields or elements of the current object of a builder from an indexed position
+     * @param entry class of the object
+     * @param length number of elements for arrays, collections, and maps; -1 otherwise
+     * @param position position of the object's contents, as given to the Index
+     * @param builder builder with the object selected
+     */
+    void populate(ClassEntry entry, int length, int position, GraphBuilder builder) throws IOException {
+        pos = position;
+        readContent(entry, length, false, builder);
+    }
+
+    /**
+     * Creates a value object from an indexed position without moving the reader, so it can be
+     * called while the contents of another object are being read
+     * @param entry class of the value object
+     * @param position position of the value, as given to the Index
+     * @return boxed primitive or String
+     */
+    Object readValueObject(ClassEntry entry, int position) throws IOException {
+        int resume = pos;
+        pos = position;
+        try {
+            switch (entry.elementType) {
+                case 'I': return readInt();
+                case 'J': return readLong();
+                case 'D': return Double.longBitsToDouble(readLong());
+                case 'F': return Float.intBitsToFloat(readInt());
+                case 'S': return (short) readShort();
+                case 'C': return (char) readShort();
+                case 'B': return (byte) readByte();
+                case 'Z': return readByte() != 0;
+                case 'T': return readString();
+                default: throw new IOException("Unknown type code " + (char) entry.elementType);
+            }
+        } finally {
+            pos = resume;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        for (byte magicByte : GraphFormat.BINARY_MAGIC) {
+            if (readByte() != magicByte) throw new IOException("Not a binary object graph");
+        }
+        int version = readByte();
+        if (version < 1 || version > GraphFormat.BINARY_VERSION) throw new IOException("Unsupported binary version " + version);
+    }
+
+    private static boolean hasLength(ClassEntry entry) {
+        return entry.kind != BinaryGraphWriter.KIND_OBJECT && entry.kind != BinaryGraphWriter.KIND_VALUE;
+    }
+
+    /**
+     * Reads the length of an array, collection, or map
+     * An array is allocated at its full length, so its length is not trusted until the input holds
+     * at least a byte per element (a whole element for primitives): a graph in memory must hold
+     * them all, and from a stream they are read ahead as they arrive
+     */
+    private int readLength(ClassEntry entry) throws IOException {
+        int length = readVarint();
+        if (length < 0 || (entry.kind == BinaryGraphWriter.KIND_MAP && length > Integer.MAX_VALUE / 2))
+            throw new IOException("Malformed length " + length);
+        if (entry.kind == BinaryGraphWriter.KIND_ARRAY) require((long) length * elementSize(entry.elementType));
+        return length;
+    }
+
+    private void readObject(GraphBuilder builder, boolean update) throws IOException {
+        int id = readVarint();
+        ClassEntry entry = readClassReference(builder.getClassResolver());
+        int length = hasLength(entry) ? readLength(entry) : -1;
+        if (update) builder.beginUpdate(id, length);
+        else builder.beginObject(id, entry.type, length);
+        readContent(entry, length, update, builder);
+        builder.endObject();
+    }
+
+    /**
+     * Reads the fields, elements, or value of the current object of a builder
+     */
+    private void readContent(ClassEntry entry, int length, boolean update, GraphBuilder builder) throws IOException {
+        if (entry.kind == BinaryGraphWriter.KIND_VALUE) {
+            readValue(entry.elementType, builder);
+        } else if (entry.kind == BinaryGraphWriter.KIND_COLLECTION || entry.kind == BinaryGraphWriter.KIND_MAP) {
+            int references = entry.kind == BinaryGraphWriter.KIND_MAP ? length * 2 : length;
+            for (int i = 0; i < references; i++)
+                readValue((byte) 'L', builder);
+        } else if (entry.kind == BinaryGraphWriter.KIND_OBJECT && update) {
+            // Only the changed fields, each preceded by its index + 1
+            for (int i = readVarint() - 1; i >= 0; i = readVarint() - 1) {
+                if (i >= entry.fields.length) throw new IOException("Unknown field index " + i + " of " + entry.name);
+                builder.beginField(entry.fields[i]);
+                readValue(entry.fieldTypes[i], builder);
+                builder.endField();
+            }
+        } else if (entry.kind == BinaryGraphWriter.KIND_OBJECT) {
+            for (int i = 0; i < entry.fields.length; i++) {
+                builder.beginField(entry.fields[i]);
+                readValue(entry.fieldTypes[i], builder);
+                builder.endField();
+            }
+        } else if (entry.kind == BinaryGraphWriter.KIND_ARRAY && entry.elementType != 'L') {
+            readPacked(entry.elementType, length, builder);
+        } else {
+            byte elementType = entry.kind == BinaryGraphWriter.KIND_ARRAYLIST ? (byte) 'I' : entry.elementType;
+            for (int i = 0; i < length; i++)
+                readValue(elementType, builder);
+        }
+    }
+
+    /**
+     * Moves past the contents of an object
+     */
+    private void skipContent(ClassEntry entry, int length) throws IOException {
+        if (entry.kind == BinaryGraphWriter.KIND_VALUE) {
+            skipValue(entry.elementType);
+        } else if (entry.kind == BinaryGraphWriter.KIND_COLLECTION || entry.kind == BinaryGraphWriter.KIND_MAP) {
+            int references = entry.kind == BinaryGraphWriter.KIND_MAP ? length * 2 : length;
+            for (int i = 0; i < references; i++) readVarint();
+        } else if (entry.kind == BinaryGraphWriter.KIND_OBJECT) {
+            for (byte fieldType : entry.fieldTypes) skipValue(fieldType);
+        } else if (entry.kind == BinaryGraphWriter.KIND_ARRAY && entry.elementType != 'L') {
+            skip((long) length * elementSize(entry.elementType));
+        } else {
+            byte elementType = entry.kind == BinaryGraphWriter.KIND_ARRAYLIST ? (byte) 'I' : entry.elementType;
+            for (int i = 0; i < length; i++) skipValue(elementType);
+        }
+    }
+
+    private void skipValue(byte type) throws IOException {
+        switch (type) {
+            case 'L': readVarint(); break;
+            case 'T': skip(readVarint()); break;
+            case 'I': case 'J': case 'D': case 'F': case 'S': case 'C': case 'B': case 'Z':
+                skip(elementSize(type));
+                break;
+            default: throw new IOException("Unknown type code " + (char) type);
+        }
+    }
+
+    private void skip(long bytes) throws IOException {
+        if (bytes < 0) throw new IOException("Malformed length " + bytes);
+        if (limit - pos < bytes) throw new EOFException("Binary object graph ended early");
+        pos += (int) bytes;
+    }
+
+    private static int elementSize(byte type) {
+        return type == 'J' || type == 'D' ? 8
+                : type == 'I' || type == 'F' ? 4
+                : type == 'S' || type == 'C' ? 2 : 1;
+    }
+
+    private ClassEntry readClassReference(ClassResolver resolver) throws IOException {
+        int classIndex = readVarint();
+        if (classIndex > 0) {
+            if (classIndex > classTable.size()) throw new IOException("Unknown class index " + classIndex);
+            return classTable.get(classIndex - 1);
+        }
+
+        ClassEntry entry = new ClassEntry();
+        entry.name = readString();
+        entry.type = resolver.resolve(entry.name);
+        entry.kind = readByte();
+        if (entry.kind == BinaryGraphWriter.KIND_ARRAY) {
+            char component = entry.name.charAt(1);
+            entry.elementType = "ZBCSIJFD".indexOf(component) >= 0 ? (byte) component : (byte) 'L';
+        } else if (entry.kind == BinaryGraphWriter.KIND_VALUE) {
+            Class valueType = ObjectKind.valueType(entry.type);
+            if (valueType == null) throw new IOException("Not a value class " + entry.name);
+            entry.elementType = valueType == String.class ? (byte) 'T' : BinaryGraphWriter.typeCode(valueType);
+        } else if (entry.kind == BinaryGraphWriter.KIND_OBJECT) {
+            ClassDescriptor descriptor = ClassDescriptor.forClass(entry.type);
+
+            int fieldCount = readVarint();
+            entry.fieldTypes = new byte[fieldCount];
+            entry.fields = new FieldAccessor[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                String declaringClassName = readString();
+                String fieldName = readString();
+                entry.fieldTypes[i] = (byte) readByte();
+                entry.fields[i] = descriptor.getField(declaringClassName, fieldName);
+            }
+        }
+        classTable.add(entry);
+        return entry;
+    }
+
+    private void readValue(byte type, GraphBuilder builder) throws IOException {
+        switch (type) {
+            case 'L':
+                int id = readVarint();
+                if (id == 0) builder.nullValue();
+                else builder.reference(id);
+                break;
+            case 'I': builder.intValue(readInt()); break;
+            case 'J': builder.longValue(readLong()); break;
+            case 'D': builder.doubleValue(Double.longBitsToDouble(readLong())); break;
+            case 'F': builder.floatValue(Float.intBitsToFloat(readInt())); break;
+            case 'S': builder.shortValue((short) readShort()); break;
+            case 'C': builder.charValue((char) readShort()); break;
+            case 'B': builder.byteValue((byte) readByte()); break;
+            case 'Z': builder.booleanValue(readByte() != 0); break;
+            case 'T': builder.stringValue(readString()); break;
+            default: throw new IOException("Unknown type code " + (char) type);
+        }
+    }
+
+    /**
+     * Reads the elements of a primitive array straight from the buffer in blocks
+     */
+    private void readPacked(byte type, int length, GraphBuilder builder) throws IOException {
+        int elementSize = elementSize(type);
+        while (length > 0) {
+            require(elementSize);
+            int count = Math.min(length, (limit - pos) / elementSize);
+            if (mapped != null) {
+                count = Math.min(count, buf.length / elementSize);
+                mapped.get(pos, buf, 0, count * elementSize);
+                builder.packedValues(buf, 0, count * elementSize);
+            } else {
+                builder.packedValues(buf, pos, count * elementSize);
+            }
+            pos += count * elementSize;
+            length -= count;
+        }
+    }
+
+    /**
+     * Makes sure the buffer holds at least some unread bytes, keeping the ones already there
+     * The buffer of a stream grows only as the bytes arrive
+     */
+    private void require(long bytes) throws IOException {
+        if (limit - pos >= bytes) return;
+        if (in == null || bytes > Integer.MAX_VALUE - 8) throw new EOFException("Binary object graph ended early");
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < bytes) {
+            if (limit == buf.length) buf = Arrays.copyOf(buf, (int) Math.min(bytes, buf.length * 2L));
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read <= 0) throw new EOFException("Binary object graph ended early");
+            limit += read;
+        }
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string
+     * The length is not trusted until its bytes are there: a graph in memory must hold them all, and
+     * from a stream the copy grows a buffer at a time as they arrive
+     */
+    private String readString() throws IOException {
+        int length = readVarint();
+        if (length < 0) throw new IOException("Malformed string length " + length);
+        if (in == null) {
+            if (limit - pos < length) throw new EOFException("Binary object graph ended early");
+            String value;
+            if (mapped != null) {
+                byte[] bytes = new byte[length];
+                mapped.get(pos, bytes, 0, length);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            } else {
+                value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            }
+            pos += length;
+            return value;
+        }
+
+        byte[] bytes = new byte[Math.min(length, buf.length)];
+        int copied = 0;
+        while (copied < length) {
+            require(1);
+            int count = Math.min(length - copied, limit - pos);
+            if (copied + count > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.min(length, Math.max(bytes.length * 2, copied + count)));
+            System.arraycopy(buf, pos, bytes, copied, count);
+            pos += count;
+            copied += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private int readInt() throws IOException {
+        return readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+    }
+
+    private long readLong() throws IOException {
+        return (readInt() & 0xFFFFFFFFL) | ((long) readInt() << 32);
+    }
+
+    private int readByte() throws IOException {
+        if (pos == limit) {
+            if (in == null) throw new EOFException("Binary object graph ended early");
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                throw new EOFException("Binary object graph ended early");
+            }
+        }
+        return mapped != null ? mapped.get(pos++) & 0xFF : buf[pos++] & 0xFF;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Streams a serialized object graph in a compact binary format
+ *
+ * Layout after the magic header and version byte:
+ *      - Each object: OBJECT tag, varint ID, class reference, varint length (arrays, collections,
+ *        and maps only), then its field values in class table order, its elements, the key and
+ *        value of each map entry, or its single value
+ *      - Class reference: varint table index, or 0 followed by a new class definition
+ *        (name, kind, and the declaring class, name, and type code of each field)
+ *      - Primitive values: raw little-endian bytes; primitive arrays are copied as one block
+ *      - String values: varint UTF-8 length and bytes
+ *      - References: varint ID, 0 for null
+ *      - Each update of a delta: UPDATE tag, then the same as an object, except that a plain
+ *        object only has its changed fields, each as a varint field index + 1 and its value,
+ *        followed by 0
+ *      - Each removal of a delta: REMOVE tag and varint ID
+ *      - END tag after the last object
+ *      - RESET tag at the start of each fragment of a graph written by several workers;
+ *        the class table starts over empty after it
+ *
+ * @author Sukhjot Sekhon
+ */
+public class BinaryGraphWriter implements StreamingGraphWriter {
+    static final int TAG_END = 0;
+    static final int TAG_OBJECT = 1;
+    static final int TAG_RESET = 2;
+    static final int TAG_UPDATE = 3;
+    static final int TAG_REMOVE = 4;
+
+    static final int KIND_OBJECT = 0;
+    static final int KIND_ARRAY = 1;
+    static final int KIND_ARRAYLIST = 2; // ArrayList of int values; only written by version 1
+    static final int KIND_COLLECTION = 3;
+    static final int KIND_MAP = 4;
+    static final int KIND_VALUE = 5;
+
+    private OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+    private final HashMap<Class, Integer> classTable = new HashMap<>(); // Class -> index, starting at 1
+    private final boolean fragment;
+    private boolean indexedFields; // Fields of the current object are written with their index
+
+    /**
+     * @param out stream to write to; it is flushed but not closed
+     */
+    public BinaryGraphWriter(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * @param out stream to write to; it is flushed but not closed
+     * @param fragment true to write a fragment, with its own class table, instead of a whole graph
+     */
+    public BinaryGraphWriter(OutputStream out, boolean fragment) {
+        this.out = out;
+        this.fragment = fragment;
+    }
+
+    /**
+     * Points the writer at another stream for a new graph and forgets the classes written so far
+     * Lets a SerializationSession keep one writer and its buffer for every graph it streams
+     * @param out stream to write to; null to let go of the last stream between graphs
+     */
+    void restart(OutputStream out) {
+        this.out = out;
+        pos = 0;
+        classTable.clear();
+        indexedFields = false;
+    }
+
+    public void beginGraph() throws IOException {
+        if (fragment) {
+            putByte(TAG_RESET);
+            return;
+        }
+        for (byte magicByte : GraphFormat.BINARY_MAGIC) putByte(magicByte);
+        putByte(GraphFormat.BINARY_VERSION);
+    }
+
+    public void beginObject(int id, Class objClass, int length) throws IOException {
+        beginObject(TAG_OBJECT, id, objClass, length);
+    }
+
+    public void beginUpdate(int id, Class objClass, int length) throws IOException {
+        beginObject(TAG_UPDATE, id, objClass, length);
+        indexedFields = ObjectKind.of(objClass) == ObjectKind.OBJECT;
+    }
+
+    public void writeRemoved(int id) throws IOException {
+        putByte(TAG_REMOVE);
+        writeVarint(id);
+    }
+
+    private void beginObject(int tag, int id, Class objClass, int length) throws IOException {
+        putByte(tag);
+        writeVarint(id);
+
+        Integer classIndex = classTable.get(objClass);
+        if (classIndex != null) {
+            writeVarint(classIndex);
+        } else {
+            writeVarint(0);
+            writeClassDefinition(objClass);
+            classTable.put(objClass, classTable.size() + 1);
+        }
+        if (length >= 0) writeVarint(length);
+    }
+
+    public void beginField(FieldAccessor field) throws IOException {
+        if (indexedFields) writeVarint(field.getIndex() + 1); // Otherwise every field is written in class table order
+    }
+
+    public void endField() {}
+
+    public void writeValue(Object value) throws IOException {
+        if (value instanceof Integer) putInt((Integer) value);
+        else if (value instanceof Long) putLong((Long) value);
+        else if (value instanceof Double) putLong(Double.doubleToRawLongBits((Double) value));
+        else if (value instanceof Float) putInt(Float.floatToRawIntBits((Float) value));
+        else if (value instanceof Short) putShort((Short) value);
+        else if (value instanceof Character) putShort((Character) value);
+        else if (value instanceof Byte) putByte((Byte) value);
+        else if (value instanceof Boolean) putByte((Boolean) value ? 1 : 0);
+        else if (value instanceof String) writeString((String) value);
+        else throw new IllegalArgumentException("Not a primitive value: " + value);
+    }
+
+    public void writeInt(int value) throws IOException { putInt(value); }
+
+    public void writeLong(long value) throws IOException { putLong(value); }
+
+    public void writeDouble(double value) throws IOException { putLong(Double.doubleToRawLongBits(value)); }
+
+    public void writeFloat(float value) throws IOException { putInt(Float.floatToRawIntBits(value)); }
+
+    public void writeShort(short value) throws IOException { putShort(value); }
+
+    public void writeChar(char value) throws IOException { putShort(value); }
+
+    public void writeByte(byte value) throws IOException { putByte(value); }
+
+    public void writeBoolean(boolean value) throws IOException { putByte(value ? 1 : 0); }
+
+    public void writePackedArray(Object array) throws IOException {
+        int elementSize = PackedArrays.elementSize(array.getClass().getComponentType());
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; ) {
+            if (buf.length - pos < elementSize) flushBuffer();
+            int count = Math.min(length - i, (buf.length - pos) / elementSize);
+            PackedArrays.pack(array, i, count, buf, pos);
+            pos += count * elementSize;
+            i += count;
+        }
+    }
+
+    public void writeReference(int id) throws IOException {
+        writeVarint(id);
+    }
+
+    public void writeNull() throws IOException {
+        writeVarint(0);
+    }
+
+    public void endObject() throws IOException {
+        if (indexedFields) writeVarint(0);
+        indexedFields = false;
+    }
+
+    public void writeFragment(byte[] fragment, int offset, int length) throws IOException {
+        flushBuffer();
+        out.write(fragment, offset, length);
+    }
+
+    public void endGraph() throws IOException {
+        if (!fragment) putByte(TAG_END);
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Gets the type code of a field or array component written in class definitions
+     * @param type type of the field or component
+     * @return JVM descriptor character for primitives; 'L' for references
+     */
+    static byte typeCode(Class type) {
+        if (!type.isPrimitive()) return 'L';
+        if (type == int.class) return 'I';
+        if (type == long.class) return 'J';
+        if (type == double.class) return 'D';
+        if (type == float.class) return 'F';
+        if (type == short.class) return 'S';
+        if (type == char.class) return 'C';
+        if (type == byte.class) return 'B';
+        return 'Z';
+    }
+
+    private void writeClassDefinition(Class objClass) throws IOException {
+        writeString(objClass.getName());
+        ObjectKind kind = ObjectKind.of(objClass);
+        if (kind == ObjectKind.ARRAY) {
+            putByte(KIND_ARRAY);
+        } else if (kind == ObjectKind.COLLECTION) {
+            putByte(KIND_COLLECTION);
+        } else if (kind == ObjectKind.MAP) {
+            putByte(KIND_MAP);
+        } else if (kind == ObjectKind.VALUE) {
+            putByte(KIND_VALUE);
+        } else {
+            putByte(KIND_OBJECT);
+            FieldAccessor[] fields = ClassDescriptor.forClass(objClass).getFields();
+            writeVarint(fields.length);
+            for (FieldAccessor field : fields) {
+                writeString(field.getDeclaringClassName());
+                writeString(field.getName());
+                putByte(typeCode(field.getType()));
+            }
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        for (byte b : bytes) putByte(b);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        ensureRoom(5);
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void putByte(int value) throws IOException {
+        ensureRoom(1);
+        buf[pos++] = (byte) value;
+    }
+
+    private void putShort(int value) throws IOException {
+        ensureRoom(2);
+        buf[pos++] = (byte) value;
+        buf[pos++] = (byte) (value >>> 8);
+    }
+
+    private void putInt(int value) throws IOException {
+        ensureRoom(4);
+        buf[pos++] = (byte) value;
+        buf[pos++] = (byte) (value >>> 8);
+        buf[pos++] = (byte) (value >>> 16);
+        buf[pos++] = (byte) (value >>> 24);
+    }
+
+    private void putLong(long value) throws IOException {
+        putInt((int) value);
+        putInt((int) (value >>> 32));
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (pos + bytes > buf.length) flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+}
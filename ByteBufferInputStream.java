@@ -0,0 +1,38 @@
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream over the remaining bytes of a buffer, so a graph in a memory-mapped file can be
+ * deserialized without first copying it to the heap
+ *
+ * @author Sukhjot Sekhon
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer buffer to read from its position to its limit; reading moves its position
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
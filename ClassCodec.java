@@ -0,0 +1,54 @@
+import java.io.IOException;
+
+/**
+ * Writes and sets the fields of objects of one class
+ * Every class has a ReflectiveClassCodec, or a generated codec when codecs are generated
+ * (see ClassCodecGenerator); both address fields by their index in the ClassDescriptor
+ *
+ * Public so codecs generated in their own class loader can implement it
+ *
+ * @author Sukhjot Sekhon
+ */
+public interface ClassCodec {
+
+    /**
+     * Writes every field of an object in ClassDescriptor order, each between beginField and endField
+     * @param obj object to write
+     * @param writer receives the fields, such as a GraphWriter writing them in a format
+     * @param references writes the value of each non-primitive field
+     */
+    void writeFields(Object obj, FieldWriter writer, References references) throws IOException;
+
+    // Typed writes of the primitive field at an index; values are never boxed except for final fields
+
+    void setInt(Object obj, int index, int value);
+
+    void setLong(Object obj, int index, long value);
+
+    void setDouble(Object obj, int index, double value);
+
+    void setFloat(Object obj, int index, float value);
+
+    void setShort(Object obj, int index, short value);
+
+    void setChar(Object obj, int index, char value);
+
+    void setByte(Object obj, int index, byte value);
+
+    void setBoolean(Object obj, int index, boolean value);
+
+    /**
+     * Sets the non-primitive field at an index
+     * @param obj object to write to
+     * @param index index of the field in the ClassDescriptor
+     * @param value new value of the field
+     */
+    void setReference(Object obj, int index, Object value);
+
+    /**
+     * Writes a reference (or null) to an object held by a field
+     */
+    interface References {
+        void writeReference(Object obj, FieldWriter writer) throws IOException;
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.*;
+
+/**
+ * Generates a ClassCodec per class with straight-line field reads and writes
+ * The codec is Java source compiled in memory with the system compiler and loaded in its own
+ * class loader. The VarHandle of each field is kept in a static final field of the codec, so the
+ * JIT treats it as a constant and compiles each access like a plain field read or write.
+ * Final fields are still set through their FieldAccessor
+ *
+ * Generation fails when no compiler is available (such as on a JRE) or when the codec cannot
+ * be compiled against the class path; the class then keeps its ReflectiveClassCodec
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class ClassCodecGenerator {
+    private static final AtomicInteger CODEC_COUNT = new AtomicInteger(); // Makes codec class names unique
+    private static final ThreadLocal<VarHandle[]> INIT_HANDLES = new ThreadLocal<>();
+
+    private static final Class[] PRIMITIVE_TYPES = {
+            int.class, long.class, double.class, float.class, short.class, char.class, byte.class, boolean.class};
+
+    private ClassCodecGenerator() {}
+
+    /**
+     * Generates, compiles, and instantiates the codec of a class
+     * @param descriptor descriptor of the class
+     * @return generated codec or null if it could not be generated
+     */
+    static ClassCodec generate(ClassDescriptor descriptor) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) return null;
+
+        FieldAccessor[] fields = descriptor.getFields();
+        String codecName = "GeneratedCodec" + CODEC_COUNT.incrementAndGet();
+        try {
+            Map<String, byte[]> classFiles = compile(compiler, codecName, source(codecName, descriptor));
+            ClassLoader loader = new CodecLoader(ClassCodec.class.getClassLoader(), classFiles);
+
+            VarHandle[] handles = new VarHandle[fields.length];
+            for (int i = 0; i < fields.length; i++) handles[i] = fields[i].getHandle();
+            INIT_HANDLES.set(handles);
+            try {
+                Class codecClass = Class.forName(codecName, true, loader);
+                return (ClassCodec) codecClass.getConstructor(FieldAccessor[].class).newInstance((Object) fields);
+            } finally {
+                INIT_HANDLES.remove();
+            }
+        } catch (IOException | ReflectiveOperationException | LinkageError | RuntimeException e) {
+            System.out.println("Cannot generate a codec for " + descriptor.getDescribedClass().getName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the field handles of the codec being initialized on this thread
+     * Only called by the static initializer of generated codecs
+     * @return VarHandle of each field, in ClassDescriptor order
+     */
+    public static VarHandle[] initHandles() {
+        return INIT_HANDLES.get();
+    }
+
+    /**
+     * Writes the source of a codec
+     * Objects are only ever typed as Object, so the codec compiles and links no matter how
+     * accessible the class is from the codec's class loader
+     * @param codecName name of the codec class
+     * @param descriptor descriptor of the class the codec is for
+     * @return source of the codec
+     */
+    static String source(String codecName, ClassDescriptor descriptor) {
+        FieldAccessor[] fields = descriptor.getFields();
+        StringBuilder src = new StringBuilder();
+        src.append("import java.io.IOException;\n");
+        src.append("import java.lang.invoke.VarHandle;\n\n");
+        src.append("// Codec of ").append(descriptor.getDescribedClass().getName()).append('\n');
+        src.append("public final class ").append(codecName).append(" implements ClassCodec {\n");
+        src.append("    private static final VarHandle[] HANDLES = ClassCodecGenerator.initHandles();\n");
+        for (int i = 0; i < fields.length; i++)
+            src.append("    private static final VarHandle F").append(i).append(" = HANDLES[").append(i).append("];\n");
+        src.append("    private final FieldAccessor[] fields;\n\n");
+        src.append("    public ").append(codecName).append("(FieldAccessor[] fields) { this.fields = fields; }\n\n");
+
+        src.append("    public void writeFields(Object obj, FieldWriter writer, ClassCodec.References references) throws IOException {\n");
+        for (int i = 0; i < fields.length; i++) {
+            Class type = fields[i].getType();
+            src.append("        writer.beginField(fields[").append(i).append("]);\n");
+            if (type.isPrimitive())
+                src.append("        writer.write").append(typeName(type)).append("((").append(type.getName()).append(") F").append(i).append(".get(obj));\n");
+            else
+                src.append("        references.writeReference(F").append(i).append(".get(obj), writer);\n");
+            src.append("        writer.endField();\n");
+        }
+        src.append("    }\n");
+
+        for (Class type : PRIMITIVE_TYPES) setter(src, fields, typeName(type), type.getName(), type);
+        setter(src, fields, "Reference", "Object", null);
+
+        src.append("}\n");
+        return src.toString();
+    }
+
+    /**
+     * Writes a setter that switches on the field index; final fields are set through their FieldAccessor
+     * @param type primitive type of the fields set, or null for every non-primitive field
+     */
+    private static void setter(StringBuilder src, FieldAccessor[] fields, String typeName, String valueType, Class type) {
+        src.append("\n    public void set").append(typeName).append("(Object obj, int index, ").append(valueType).append(" value) {\n");
+        src.append("        switch (index) {\n");
+        for (int i = 0; i < fields.length; i++) {
+            Class fieldType = fields[i].getType();
+            if (type == null ? fieldType.isPrimitive() : fieldType != type) continue;
+            src.append("            case ").append(i).append(": ");
+            if (fields[i].isFinal())
+                src.append("fields[").append(i).append("].").append(type == null ? "set" : "set" + typeName).append("(obj, value); return;\n");
+            else
+                src.append('F').append(i).append(".set(obj, value); return;\n");
+        }
+        src.append("        }\n");
+        src.append("        throw new IllegalArgumentException(\"No ").append(valueType).append(" field at index \" + index);\n");
+        src.append("    }\n");
+    }
+
+    private static String typeName(Class type) {
+        String name = type.getName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Compiles a source file in memory
+     * @return class file of every class in the source, by class name
+     */
+    private static Map<String, byte[]> compile(JavaCompiler compiler, String className, String source) throws IOException {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, ByteArrayOutputStream> outputs = new HashMap<>();
+
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("mem:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        // The standard file manager resolves ClassCodec and friends on the application class path
+        try (JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(compiler.getStandardFileManager(diagnostics, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+                        outputs.put(name, classFile);
+                        return classFile;
+                    }
+                };
+            }
+        }) {
+            boolean compiled = compiler.getTask(null, fileManager, diagnostics, Arrays.asList("-proc:none", "-g:none"),
+                    null, Collections.singletonList(sourceFile)).call();
+            if (!compiled) throw new IllegalStateException("Compilation failed: " + diagnostics.getDiagnostics());
+        }
+
+        Map<String, byte[]> classFiles = new HashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet())
+            classFiles.put(output.getKey(), output.getValue().toByteArray());
+        return classFiles;
+    }
+
+    /**
+     * Loads the classes of one generated codec, delegating everything else to the parent
+     */
+    private static final class CodecLoader extends ClassLoader {
+        private final Map<String, byte[]> classFiles;
+
+        CodecLoader(ClassLoader parent, Map<String, byte[]> classFiles) {
+            super(parent);
+            this.classFiles = classFiles;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name);
+            if (classFile == null) throw new ClassNotFoundException(name);
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
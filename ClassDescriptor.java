@@ -0,0 +1,174 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+/**
+ * Per-class field plan shared by the Serializer and Deserializer
+ * Computed once per class: the ordered non-static fields of the class, including inherited
+ * superclass fields (superclass fields first), each with a prebuilt FieldAccessor, and the
+ * ClassCodec that writes and sets them. Also instantiates the class through a prebuilt handle
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class ClassDescriptor {
+    // ClassValue caches per class without keeping classes (or their loaders) alive
+    private static final ClassValue<ClassDescriptor> CACHE = new ClassValue<ClassDescriptor>() {
+        @Override
+        protected ClassDescriptor computeValue(Class<?> type) {
+            return new ClassDescriptor(type);
+        }
+    };
+    // Run with -DgeneratedCodecs=true to generate a codec for each class instead of walking its fields
+    private static final boolean GENERATED_CODECS = Boolean.getBoolean("generatedCodecs");
+
+    private final Class describedClass;
+    private final FieldAccessor[] fields;
+    private volatile ClassCodec codec; // Created on first use, so only serialized classes get generated codecs
+    private volatile MethodHandle instantiator; // ()Object; created on first use
+    private volatile MethodHandle allocator; // ()Object running no constructor; only for classes without a no-arg one
+    private static final MethodHandle NO_CONSTRUCTOR = MethodHandles.constant(Object.class, null); // Instantiator of classes without one
+
+    private ClassDescriptor(Class describedClass) {
+        this.describedClass = describedClass;
+
+        // Collect the hierarchy so superclass fields come before subclass fields
+        ArrayList<Class> hierarchy = new ArrayList<>();
+        for (Class c = describedClass; c != null && c != Object.class; c = c.getSuperclass())
+            hierarchy.add(0, c);
+
+        ArrayList<FieldAccessor> accessors = new ArrayList<>();
+        for (Class c : hierarchy) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                accessors.add(new FieldAccessor(field, accessors.size()));
+            }
+        }
+        fields = accessors.toArray(new FieldAccessor[0]);
+        Metrics.REFLECTION_LOOKUPS.add(hierarchy.size() + fields.length); // Declared fields of each class, then a handle per field
+    }
+
+    /**
+     * Gets the cached descriptor of a class, computing it on first use
+     * @param objClass class to describe
+     * @return descriptor of the class
+     */
+    public static ClassDescriptor forClass(Class objClass) {
+        return CACHE.get(objClass);
+    }
+
+    /**
+     * Gets the ordered non-static fields of the class
+     * The returned array is shared and must not be modified
+     * @return field accessors, superclass fields first
+     */
+    public FieldAccessor[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Gets the codec of the class, creating it on first use
+     * A generated codec if codecs are generated and generation succeeds, a ReflectiveClassCodec otherwise
+     * @return codec of the class
+     */
+    public ClassCodec getCodec() {
+        ClassCodec result = codec;
+        if (result == null) {
+            synchronized (this) { // Generates at most once per class
+                if (codec == null) {
+                    ClassCodec generated = GENERATED_CODECS ? ClassCodecGenerator.generate(this) : null;
+                    codec = generated != null ? generated : new ReflectiveClassCodec(this);
+                }
+                result = codec;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates an instance of the class with its no-arg constructor
+     * @return new instance
+     */
+    public Object newInstance() {
+        return newInstance(false);
+    }
+
+    /**
+     * Creates an instance of the class with its no-arg constructor
+     * @param withoutConstructor true to allocate the class without running any of its constructors
+     *                           if it has no no-arg one, as Java serialization does; every field then
+     *                           keeps its default value until it is set. Only for classes a
+     *                           ClassResolver allows (see ClassResolver.allowWithoutConstructor)
+     * @return new instance
+     */
+    Object newInstance(boolean withoutConstructor) {
+        MethodHandle handle = instantiator;
+        if (handle == null) instantiator = handle = findInstantiator(); // Threads racing here find equivalent handles
+        if (handle == NO_CONSTRUCTOR) {
+            if (!withoutConstructor)
+                throw new IllegalStateException("Cannot instantiate " + describedClass.getName() + ": it has no no-arg constructor");
+            handle = allocator;
+            if (handle == null) allocator = handle = findAllocator();
+        }
+        try {
+            return (Object) handle.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Cannot instantiate " + describedClass.getName(), t);
+        }
+    }
+
+    private MethodHandle findInstantiator() {
+        Metrics.REFLECTION_LOOKUPS.add(1);
+        MethodType instantiatorType = MethodType.methodType(Object.class);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(describedClass, MethodHandles.lookup());
+            return lookup.findConstructor(describedClass, MethodType.methodType(void.class)).asType(instantiatorType);
+        } catch (NoSuchMethodException e) {
+            return NO_CONSTRUCTOR;
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalStateException("Cannot instantiate " + describedClass.getName(), e);
+        }
+    }
+
+    /**
+     * Finds the constructor Java serialization uses for the class, which only runs Object()
+     * ReflectionFactory is looked up by name: it is the supported way to do this (module
+     * jdk.unsupported), but naming it in the source makes javac warn on every build
+     */
+    private MethodHandle findAllocator() {
+        Metrics.REFLECTION_LOOKUPS.add(1);
+        try {
+            Class factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+            Method forSerialization = factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+            Constructor constructor = (Constructor) forSerialization.invoke(factory, describedClass, Object.class.getDeclaredConstructor());
+            MethodHandle newInstance = MethodHandles.lookup().findVirtual(Constructor.class, "newInstance",
+                    MethodType.methodType(Object.class, Object[].class));
+            return MethodHandles.insertArguments(newInstance.bindTo(constructor), 0, (Object) new Object[0]);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            throw new IllegalStateException("Cannot instantiate " + describedClass.getName(), e);
+        }
+    }
+
+    /**
+     * Finds a field by its declaring class and name
+     * @param declaringClassName name of the class declaring the field
+     * @param fieldName name of the field
+     * @return matching field accessor or null if none exists
+     */
+    public FieldAccessor getField(String declaringClassName, String fieldName) {
+        for (FieldAccessor field : fields) {
+            if (field.getName().equals(fieldName) && field.getDeclaringClassName().equals(declaringClassName))
+                return field;
+        }
+        return null;
+    }
+
+    public Class getDescribedClass() {
+        return describedClass;
+    }
+}
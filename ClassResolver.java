@@ -0,0 +1,77 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the class names of a serialized graph through one class loader
+ * Each name is looked up with Class.forName only once; a graph names the same few classes
+ * over and over, so every later lookup is a hash map hit. Safe to share between threads
+ *
+ * Classes resolved through it must have a no-arg constructor to be deserialized, unless they
+ * were allowed with allowWithoutConstructor
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class ClassResolver {
+    private static final ClassResolver DEFAULT = new ClassResolver(ClassResolver.class.getClassLoader());
+
+    private final ClassLoader loader;
+    private final ConcurrentHashMap<String, Class> classes = new ConcurrentHashMap<>();
+    private final Set<Class> constructorless = ConcurrentHashMap.newKeySet(); // Allowed without a no-arg constructor
+
+    /**
+     * @param loader class loader resolving the names
+     */
+    public ClassResolver(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Gets the resolver using the class loader of the serializer's own classes
+     * @return shared default resolver
+     */
+    public static ClassResolver getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Resolves a class name, loading the class on first use
+     * @param className binary name of the class, or descriptor of an array class
+     * @return resolved class
+     */
+    public Class resolve(String className) {
+        Class resolved = classes.get(className);
+        if (resolved != null) return resolved;
+        Metrics.REFLECTION_LOOKUPS.add(1);
+        try {
+            resolved = Class.forName(className, false, loader);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot instantiate " + className, e);
+        }
+        classes.putIfAbsent(className, resolved);
+        return resolved;
+    }
+
+    /**
+     * Allows a class without a no-arg constructor to be deserialized through this resolver
+     * Its instances are allocated without running any constructor, as Java serialization does, so
+     * every field keeps its default value until it is set. Only allow classes whose state is entirely
+     * set from their fields; a received graph may name any class on the class path
+     * @param type class to allow
+     */
+    public void allowWithoutConstructor(Class type) {
+        constructorless.add(type);
+    }
+
+    /**
+     * Checks whether a class may be allocated without running a constructor
+     * @param type class to check
+     * @return true if the class was allowed with allowWithoutConstructor
+     */
+    public boolean isAllowedWithoutConstructor(Class type) {
+        return constructorless.contains(type);
+    }
+
+    public ClassLoader getClassLoader() {
+        return loader;
+    }
+}
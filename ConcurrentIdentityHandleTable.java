@@ -0,0 +1,50 @@
+/**
+ * Identity-keyed handle table that can be shared between threads
+ * Objects are spread over lock-striped IdentityHandleTable segments, so threads adding
+ * different objects rarely wait on each other
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class ConcurrentIdentityHandleTable {
+    public static final int NOT_FOUND = IdentityHandleTable.NOT_FOUND;
+
+    private static final int SEGMENT_BITS = 6; // 64 segments
+
+    private final IdentityHandleTable[] segments = new IdentityHandleTable[1 << SEGMENT_BITS];
+
+    public ConcurrentIdentityHandleTable() {
+        for (int i = 0; i < segments.length; i++) segments[i] = new IdentityHandleTable();
+    }
+
+    /**
+     * Gets the handle of an object
+     * @param obj object to look up (compared by identity)
+     * @return handle of the object or NOT_FOUND
+     */
+    public int get(Object obj) {
+        IdentityHandleTable segment = segmentFor(obj);
+        synchronized (segment) {
+            return segment.get(obj);
+        }
+    }
+
+    /**
+     * Associates a handle with an object unless it already has one
+     * Exactly one of several threads adding the same object gets NOT_FOUND back
+     * @param obj object to add (must not be null)
+     * @param handle handle to associate with the object
+     * @return existing handle of the object or NOT_FOUND if the handle was added
+     */
+    public int putIfAbsent(Object obj, int handle) {
+        IdentityHandleTable segment = segmentFor(obj);
+        synchronized (segment) {
+            return segment.putIfAbsent(obj, handle);
+        }
+    }
+
+    private IdentityHandleTable segmentFor(Object obj) {
+        // Uses the high bits of a different multiplier than the segments' own probing
+        int h = System.identityHashCode(obj) * 0x85EBCA6B;
+        return segments[h >>> (32 - SEGMENT_BITS)];
+    }
+}
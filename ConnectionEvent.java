@@ -0,0 +1,69 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning one framed connection, from when it is opened until it closes
+ * The connection counts its frames and bytes as it goes; the event is committed when it closes
+ *
+ * @author Sukhjot Sekhon
+ */
+@Name("objectsharing.Connection")
+@Label("Graph Connection")
+@Category("Object Sharing")
+@Description("Frames and bytes carried by one connection while it was open")
+public class ConnectionEvent extends Event {
+    static final String SEND = "send";
+    static final String RECEIVE = "receive";
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Frames")
+    @Description("Graph frames plus compression dictionaries")
+    long frames;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    private transient boolean finished; // Not recorded
+
+    /**
+     * Starts the event when a connection opens
+     * @param direction SEND or RECEIVE
+     * @param remoteAddress address of the other end
+     */
+    ConnectionEvent(String direction, Object remoteAddress) {
+        this.direction = direction;
+        this.remoteAddress = String.valueOf(remoteAddress);
+        begin();
+    }
+
+    /**
+     * Counts frames carried by the connection
+     * @param frames number of frames
+     * @param bytes bytes of the frames, length prefixes included
+     */
+    void count(int frames, long bytes) {
+        this.frames += frames;
+        this.bytes += bytes;
+    }
+
+    /**
+     * Ends the event when the connection closes and commits it if it is being recorded
+     * Only the first call has any effect, so closing a connection twice records it once
+     */
+    void finish() {
+        if (finished) return;
+        finished = true;
+        end();
+        if (shouldCommit()) commit();
+    }
+}
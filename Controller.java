@@ -1,9 +1,6 @@
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import org.jdom2.*;
-import org.jdom2.input.SAXBuilder;
+import java.util.Map;
 
 /**
  * Primary controller class for sending or recieving objects.
@@ -11,12 +8,19 @@ import org.jdom2.input.SAXBuilder;
  * @author Sukhjot Sekhon
  */
 public class Controller {
+    // Run with -DdebugTap=true to dump sent/received documents to objects(send).xml and objects(receive).xml
+    private static final boolean DEBUG_TAP = Boolean.getBoolean("debugTap");
+    // Run with -Dparallel=true to serialize and deserialize objects on all cores
+    private static final boolean PARALLEL = Boolean.getBoolean("parallel");
+    // Run with -Dlazy=true to only build received objects as they are visualized
+    private static final boolean LAZY = Boolean.getBoolean("lazy");
+
     Controller control = new Controller();
     Creator creator = new Creator();
-    Serializer serializer = new Serializer();
+    Serializer serializer = PARALLEL ? new ParallelSerializer() : new Serializer();
     SockSender sender = new SockSender();
     SockReceiver receiver = new SockReceiver();
-    Deserializer deserializer = new Deserializer();
+    Deserializer deserializer = LAZY ? new LazyDeserializer() : PARALLEL ? new ParallelDeserializer() : new Deserializer();
     Visualizer visualizer = new Visualizer();
 
     public static void main(String[] args) {
@@ -27,7 +31,7 @@ public class Controller {
     }
 
     /**
-     * Run in send mode to create, serialize, and send an XML document
+     * Run in send mode to create objects and serialize them into a socket
      */
     private void sendMode() {
         // Create objects
@@ -38,29 +42,29 @@ public class Controller {
             input = creator.getIntInput(1, 2);
         }
 
-        // Serialize objects to XML document
+        // Serialize objects straight into the socket
         ArrayList<Object> createdObjects = creator.getCreatedObjects();
-        for (Object object : createdObjects)
-            serializer.serialize(object);
-
-        // Send XML document
         int portNum = creator.getIntInput(1, 65535);
-        sender.send(portNum, "objects(send).xml");
+        if (DEBUG_TAP) sender.setDebugTap("objects(send).xml");
+        try {
+            sender.send(portNum, createdObjects, serializer);
+        } catch (IOException e) { e.printStackTrace(); }
     }
 
     /**
-     * Run in receive mode to recieve, deserialize, and visualize an XML document
+     * Run in receive mode to deserialize objects from a socket and visualize them
      */
     private void receiveMode() {
-        // Recieve XML document
+        // Recieve and deserialize objects straight from the socket
         int portNum = creator.getIntInput(1, 65535);
-        receiver.receive(portNum, "objects(receive).xml");
-
-        // Deserialize XML document
-        SAXBuilder builder = new SAXBuilder();
-        File file = new File("objects(receive).xml");
-        Document document = builder.build(file);
-        HashMap hMap = (HashMap) deserializer.deserialize(document);
+        if (DEBUG_TAP) receiver.setDebugTap("objects(receive).xml");
+        Map hMap = null;
+        try {
+            hMap = (Map) receiver.receive(portNum, deserializer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
         // Visualize objects
         for (Object obj : hMap.keySet()) {
@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.io.InputStream;
+import org.jdom2.*;
+
+/**
+ * Deserializes the graphs of a DeltaSerializer session, patching one graph in place
+ * The first graph is read as usual; each later one adds its new objects, updates the fields
+ * and contents of existing objects, and drops removed objects, so objects keep their identity
+ * from graph to graph. Graphs must be given in the order they were sent. Every graph returns
+ * the same HashMap, which is updated in place along with its objects
+ *
+ * @author Sukhjot Sekhon
+ */
+public class DeltaDeserializer extends Deserializer {
+    private GraphBuilder builder; // Every object received so far; created with the first graph
+
+    /**
+     * Applies a graph of the session
+     *
+     * @param document Document to apply
+     * @return HashMap containing every object of the graph after the update
+     */
+    @Override
+    public Object deserialize(Document document) {
+        return deserialize(document, session());
+    }
+
+    /**
+     * Applies a graph of the session read from a stream
+     *
+     * @param in stream containing the XML document or binary graph
+     * @return HashMap containing every object of the graph after the update
+     */
+    @Override
+    public Object deserialize(InputStream in) throws IOException {
+        return deserialize(in, session());
+    }
+
+    /**
+     * Forgets every object received, so the next graph starts a new session
+     */
+    public void reset() {
+        builder = null;
+    }
+
+    private GraphBuilder session() {
+        if (builder == null) builder = new GraphBuilder(getClassResolver());
+        return builder;
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serializes a changing object graph as a session of deltas, each against the graph sent before
+ * Objects keep their ID from send to send, and the state last sent of each object is kept as
+ * a shadow copy: field values (references as IDs), element IDs, or packed primitive elements.
+ * Each send walks the whole graph and compares it with the shadows, but only writes:
+ *      - objects reached for the first time, in full
+ *      - updates of objects that changed: only the changed fields of plain objects; every
+ *        element of arrays, collections, and maps
+ *      - removals of objects no longer reached from the roots
+ *
+ * The first send is a whole graph. The graphs of a session must be read in order by one
+ * DeltaDeserializer, which patches the graph it received before in place
+ *
+ * @author Sukhjot Sekhon
+ */
+public class DeltaSerializer {
+    private static final Object VALUE_STATE = new Object(); // Shadow of a value object; values never change
+
+    private final IdentityHandleTable handles = new IdentityHandleTable(); // Every object in the session and its ID
+    private Object[] objects = new Object[64]; // Object of each ID
+    private Object[] shadows = new Object[64]; // State last sent of each ID: long[], int[], byte[], or VALUE_STATE
+    private int[] reachedBy = new int[64]; // Number of the last send that reached each ID
+    private int maxID;
+    private int[] freeIDs = new int[16]; // IDs removed by earlier sends, given to new objects
+    private int freeCount;
+    private int sendCount;
+    private int objectsWritten; // Objects written by the current send, for the metrics
+    private long fieldsVisited; // Fields compared by the current send, changed or not
+    private final ArrayDeque<Object> pending = new ArrayDeque<>(); // Objects reached but not yet compared
+
+    // Current state of the object being compared; only copied to its shadow when it changed
+    private long[] fieldState = new long[16];
+    private int[] elementIDs = new int[64];
+    private byte[] packedState = new byte[256];
+    private final ShadowRecorder recorder = new ShadowRecorder();
+    private final ClassCodec.References references = (obj, writer) -> {
+        if (obj == null) writer.writeNull();
+        else writer.writeReference(reach(obj));
+    };
+
+    /**
+     * Sends the graph of some roots, writing only what changed since the last send
+     *
+     * @param objs root objects of the graph
+     * @param out stream to write to; it is flushed but not closed
+     * @param format wire format to write
+     */
+    public void serialize(Collection<?> objs, OutputStream out, GraphFormat format) throws IOException {
+        serialize(objs, format.newWriter(out));
+    }
+
+    /**
+     * Sends the graph of some roots, writing only what changed since the last send
+     *
+     * @param objs root objects of the graph
+     * @param writer format to write the delta in
+     */
+    public void serialize(Collection<?> objs, GraphWriter writer) throws IOException {
+        GraphEvent event = new GraphEvent(GraphEvent.SERIALIZE);
+        long start = Metrics.startTime();
+        objectsWritten = 0;
+        fieldsVisited = 0;
+        sendCount++;
+        writer.beginGraph();
+        for (Object obj : objs) {
+            if (obj == null) continue;
+            reach(obj);
+            while (!pending.isEmpty())
+                writeChanges(pending.poll(), writer);
+        }
+
+        // Removed IDs are only reused by the next send, after the receiver has applied the removal
+        for (int id = 1; id <= maxID; id++) {
+            if (objects[id] == null || reachedBy[id] == sendCount) continue;
+            writer.writeRemoved(id);
+            handles.remove(objects[id]);
+            objects[id] = null;
+            shadows[id] = null;
+            if (freeCount == freeIDs.length) freeIDs = Arrays.copyOf(freeIDs, freeCount * 2);
+            freeIDs[freeCount++] = id;
+        }
+        writer.endGraph();
+        Metrics.graphSerialized(start, objectsWritten, fieldsVisited);
+        event.finish(objectsWritten);
+    }
+
+    /**
+     * Forgets every object sent, so the next send is a whole graph
+     * The receiver must start a new session at the same time (see DeltaDeserializer.reset)
+     */
+    public void reset() {
+        handles.clear();
+        Arrays.fill(objects, null);
+        Arrays.fill(shadows, null);
+        maxID = 0;
+        freeCount = 0;
+    }
+
+    /**
+     * Gets the ID of an object reached by the current send, giving it one if it is new
+     * Each object is queued to be compared the first time a send reaches it
+     * @param obj reached object
+     * @return ID of the object
+     */
+    private int reach(Object obj) {
+        int id = handles.get(obj);
+        if (id == IdentityHandleTable.NOT_FOUND) {
+            id = freeCount > 0 ? freeIDs[--freeCount] : ++maxID;
+            if (id >= objects.length) {
+                int newLength = Math.max(objects.length * 2, id + 1);
+                objects = Arrays.copyOf(objects, newLength);
+                shadows = Arrays.copyOf(shadows, newLength);
+                reachedBy = Arrays.copyOf(reachedBy, newLength);
+            }
+            handles.put(obj, id);
+            objects[id] = obj;
+        }
+        if (reachedBy[id] != sendCount) {
+            reachedBy[id] = sendCount;
+            pending.add(obj);
+        }
+        return id;
+    }
+
+    /**
+     * Compares an object with its shadow and writes it if it is new or changed
+     * @param obj object to compare
+     * @param writer format to write the delta in
+     */
+    private void writeChanges(Object obj, GraphWriter writer) throws IOException {
+        int id = handles.get(obj);
+        Class objClass = obj.getClass();
+        switch (ObjectKind.of(objClass)) {
+            case VALUE:
+                if (shadows[id] == null) {
+                    objectsWritten++;
+                    writer.beginObject(id, objClass, -1);
+                    writer.writeValue(obj);
+                    writer.endObject();
+                    shadows[id] = VALUE_STATE;
+                }
+                break;
+            case OBJECT:
+                writeFieldChanges(obj, id, writer);
+                break;
+            case ARRAY:
+                if (objClass.getComponentType().isPrimitive()) {
+                    writePackedChanges(obj, id, writer);
+                    break;
+                }
+                Object[] array = (Object[]) obj;
+                for (int i = 0; i < array.length; i++) recordElement(i, array[i]);
+                writeElementChanges(obj, id, array.length, array.length, writer);
+                break;
+            case COLLECTION:
+                int count = 0;
+                for (Object element : (Collection<?>) obj) recordElement(count++, element);
+                writeElementChanges(obj, id, count, count, writer);
+                break;
+            case MAP:
+                int entryCount = 0;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+                    recordElement(entryCount * 2, entry.getKey());
+                    recordElement(entryCount * 2 + 1, entry.getValue());
+                    entryCount++;
+                }
+                writeElementChanges(obj, id, entryCount * 2, entryCount, writer);
+                break;
+        }
+    }
+
+    private void recordElement(int i, Object element) {
+        if (i == elementIDs.length) elementIDs = Arrays.copyOf(elementIDs, i * 2);
+        elementIDs[i] = element == null ? 0 : reach(element);
+    }
+
+    /**
+     * Writes a new plain object in full, or only the fields of a known one that changed
+     */
+    private void writeFieldChanges(Object obj, int id, GraphWriter writer) throws IOException {
+        ClassDescriptor descriptor = ClassDescriptor.forClass(obj.getClass());
+        FieldAccessor[] fields = descriptor.getFields();
+        if (fieldState.length < fields.length) fieldState = new long[fields.length];
+        descriptor.getCodec().writeFields(obj, recorder, references); // Records the state of every field
+        fieldsVisited += fields.length;
+
+        long[] shadow = (long[]) shadows[id];
+        if (shadow == null) {
+            objectsWritten++;
+            writer.beginObject(id, obj.getClass(), -1);
+            for (FieldAccessor field : fields) writeField(field, fieldState[field.getIndex()], writer);
+            writer.endObject();
+            shadows[id] = Arrays.copyOf(fieldState, fields.length);
+            return;
+        }
+        if (Arrays.equals(shadow, 0, fields.length, fieldState, 0, fields.length)) return;
+
+        objectsWritten++;
+        writer.beginUpdate(id, obj.getClass(), -1);
+        for (FieldAccessor field : fields) {
+            int i = field.getIndex();
+            if (shadow[i] != fieldState[i]) writeField(field, fieldState[i], writer);
+        }
+        writer.endObject();
+        System.arraycopy(fieldState, 0, shadow, 0, fields.length);
+    }
+
+    /**
+     * Writes an array of references, a collection, or a map if it is new or any of its recorded
+     * element IDs (alternating keys and values for maps) changed
+     * @param count number of element IDs recorded
+     * @param length number of elements or map entries
+     */
+    private void writeElementChanges(Object obj, int id, int count, int length, GraphWriter writer) throws IOException {
+        int[] shadow = (int[]) shadows[id];
+        if (shadow != null && Arrays.equals(shadow, 0, shadow.length, elementIDs, 0, count)) return;
+
+        objectsWritten++;
+        if (shadow == null) writer.beginObject(id, obj.getClass(), length);
+        else writer.beginUpdate(id, obj.getClass(), length);
+        for (int i = 0; i < count; i++) {
+            if (elementIDs[i] == 0) writer.writeNull();
+            else writer.writeReference(elementIDs[i]);
+        }
+        writer.endObject();
+        if (shadow != null && shadow.length == count) System.arraycopy(elementIDs, 0, shadow, 0, count);
+        else shadows[id] = Arrays.copyOf(elementIDs, count);
+    }
+
+    /**
+     * Writes a primitive array if it is new or any of its elements changed
+     */
+    private void writePackedChanges(Object array, int id, GraphWriter writer) throws IOException {
+        int length = Array.getLength(array);
+        int size = length * PackedArrays.elementSize(array.getClass().getComponentType());
+        if (packedState.length < size) packedState = new byte[Math.max(size, packedState.length * 2)];
+        PackedArrays.pack(array, 0, length, packedState, 0);
+
+        byte[] shadow = (byte[]) shadows[id];
+        if (shadow != null && Arrays.equals(shadow, 0, shadow.length, packedState, 0, size)) return;
+
+        objectsWritten++;
+        if (shadow == null) writer.beginObject(id, array.getClass(), length);
+        else writer.beginUpdate(id, array.getClass(), length);
+        writer.writePackedArray(array);
+        writer.endObject();
+        if (shadow != null) System.arraycopy(packedState, 0, shadow, 0, size); // Arrays never change length
+        else shadows[id] = Arrays.copyOf(packedState, size);
+    }
+
+    /**
+     * Writes a field from its recorded state
+     * @param field field to write
+     * @param state raw bits of a primitive value, or the ID of the referenced object (0 for null)
+     * @param writer format to write the field in
+     */
+    private static void writeField(FieldAccessor field, long state, GraphWriter writer) throws IOException {
+        writer.beginField(field);
+        Class type = field.getType();
+        if (!type.isPrimitive()) {
+            if (state == 0) writer.writeNull();
+            else writer.writeReference((int) state);
+        }
+        else if (type == int.class) writer.writeInt((int) state);
+        else if (type == long.class) writer.writeLong(state);
+        else if (type == double.class) writer.writeDouble(Double.longBitsToDouble(state));
+        else if (type == float.class) writer.writeFloat(Float.intBitsToFloat((int) state));
+        else if (type == short.class) writer.writeShort((short) state);
+        else if (type == char.class) writer.writeChar((char) state);
+        else if (type == byte.class) writer.writeByte((byte) state);
+        else writer.writeBoolean(state != 0);
+        writer.endField();
+    }
+
+    /**
+     * Records the fields a ClassCodec writes into fieldState instead of writing them
+     * Primitive values are kept as their raw bits and references as IDs
+     */
+    private final class ShadowRecorder implements FieldWriter {
+        private int field; // Index of the field being recorded
+
+        public void beginField(FieldAccessor field) { this.field = field.getIndex(); }
+
+        public void endField() {}
+
+        public void writeInt(int value) { fieldState[field] = value; }
+
+        public void writeLong(long value) { fieldState[field] = value; }
+
+        public void writeDouble(double value) { fieldState[field] = Double.doubleToRawLongBits(value); }
+
+        public void writeFloat(float value) { fieldState[field] = Float.floatToRawIntBits(value); }
+
+        public void writeShort(short value) { fieldState[field] = value; }
+
+        public void writeChar(char value) { fieldState[field] = value; }
+
+        public void writeByte(byte value) { fieldState[field] = value; }
+
+        public void writeBoolean(boolean value) { fieldState[field] = value ? 1 : 0; }
+
+        public void writeReference(int id) { fieldState[field] = id; }
+
+        public void writeNull() { fieldState[field] = 0; }
+    }
+}
@@ -1,16 +1,47 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
-import org.jdom2.*;
-import java.lang.reflect.*;
 import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.jdom2.*;
 
 /**
  * Deserializes an XML document by instantiating and setting objects
+ * Documents can be read from a JDOM tree or streamed with a pull parser
  *
  * @author Sukhjot Sekhon
  */
 public class Deserializer {
-    private HashMap hMap;
+    static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // Documents come from the network, so never resolve DTDs or external entities
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // Text of each element arrives as one event, so values can be parsed from the parser's buffer
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private ClassResolver classResolver = ClassResolver.getDefault();
+
+    /**
+     * Sets the class loader that class names in received graphs are resolved with
+     * @param loader class loader of the deserialized classes
+     */
+    public void setClassLoader(ClassLoader loader) {
+        classResolver = new ClassResolver(loader);
+    }
+
+    ClassResolver getClassResolver() {
+        return classResolver;
+    }
 
     /**
      * Deserializes a document
@@ -19,143 +50,273 @@ public class Deserializer {
      * @return HashMap containing deserialized objects
      */
     public Object deserialize(Document document) {
-        hMap = new HashMap();
+        return deserialize(document, new GraphBuilder(classResolver));
+    }
 
+    /**
+     * Deserializes a document into a builder
+     * @param document Document to deserialize
+     * @param builder graph being built; may hold objects of earlier graphs
+     * @return HashMap containing every object of the builder
+     */
+    Object deserialize(Document document, GraphBuilder builder) {
+        GraphEvent graphEvent = new GraphEvent(GraphEvent.DESERIALIZE);
+        long start = Metrics.startTime();
         Element elemRoot = document.getRootElement();
         List<Element> objs = elemRoot.getChildren(); // List of objects in document
-
         for (Element obj : objs) {
-            String className = obj.getAttributeValue("class");
-            Class classObj = null;
-            try {
-                classObj = Class.forName(className);
-            } catch (ClassNotFoundException e) { e.printStackTrace(); }
-
-            Object objLoaded = null;
-            //Arraylist
-            if (className.equals("java.util.ArrayList")) {
-                try {
-                    Class componentType = int.class;
-                    int lengthLoaded = Integer.parseInt(obj.getAttributeValue("length"));
-                    objLoaded = ArrayList.class.newInstance();
-                } catch (Exception e) { e.printStackTrace(); }
+            int objID = Integer.parseInt(obj.getAttributeValue("id"));
+            if (obj.getName().equals("removed")) {
+                builder.remove(objID);
+                continue;
             }
-            // Array
-            else if (classObj.isArray()) {
-                Class componentType = classObj.getComponentType();
-                int lengthLoaded = Integer.parseInt(obj.getAttributeValue("length"));
-                objLoaded = Array.newInstance(componentType, lengthLoaded);
+            String length = obj.getAttributeValue("length");
+            int objLength = length == null ? -1 : Integer.parseInt(length);
+            if (obj.getName().equals("update")) {
+                builder.beginUpdate(objID, objLength);
+            } else {
+                Class objClass = builder.getClassResolver().resolve(obj.getAttributeValue("class"));
+                checkArrayLength(objClass, objLength, obj);
+                builder.beginObject(objID, objClass, objLength);
             }
-            // Other
-            else {
-                try {
-                    Constructor constructor = classObj.getDeclaredConstructor(null); // no-arg constructor
-                    objLoaded = constructor.newInstance(null);
-                } catch (Exception e) { e.printStackTrace(); }
+            setContent(builder, obj);
+        }
+        return recordGraph(builder.finish(), builder, graphEvent, start);
+    }
+
+    /**
+     * Sets the fields or elements of the current object from its object element, then ends it
+     * @param builder graph being built
+     * @param obj object element
+     */
+    void setContent(GraphBuilder builder, Element obj) {
+        for (Element child : obj.getChildren()) {
+            if (child.getName().equals("field")) {
+                builder.beginField(child.getAttributeValue("declaringclass"), child.getAttributeValue("name"));
+                for (Element fieldChild : child.getChildren())
+                    setElement(builder, fieldChild.getName(), fieldChild.getText());
+                builder.endField();
+            } else {
+                setElement(builder, child.getName(), child.getText());
             }
-            // Get the ID and put it in the HashMap
-            int objID = Integer.parseInt(obj.getAttributeValue("id"));
-            hMap.put(objID, objLoaded);
         }
-        setFields(objs);
-        return hMap;
+        builder.endObject();
     }
 
     /**
-     * Sets fields or references of an object
-     * @param objs objects to set fields/references to
+     * Deserializes a document in a single pass with a pull parser
+     * Objects are instantiated as their elements arrive, so no document tree is built
+     * Binary graphs are recognized by their magic header and read with a BinaryGraphReader
+     *
+     * @param in stream containing the XML document
+     * @return HashMap containing deserialized objects
      */
-    private void setFields(List<Element> objs) {
-        int objID = 1; // Object ID's start at 1
-        for (Element obj : objs) {
-            Object objToSet = hMap.get(objID++);
-            List<Element> fieldElems = obj.getChildren();
-
-            Class objClass = objToSet.getClass();
-            // ArrayList
-            if (objClass.getName().equals("java.util.ArrayList") || objClass.getName().equals("ObjCollections"))
-                setArrayListFields(objToSet, fieldElems);
-            // Array
-            else if (objClass.isArray())
-                setArrayFields(objToSet, fieldElems);
-            // Other
-            else
-                setNonArrayFields(objToSet, fieldElems);
+    public Object deserialize(InputStream in) throws IOException {
+        return deserialize(in, new GraphBuilder(classResolver));
+    }
+
+    /**
+     * Reads the elements of a large array from the pull parser before the array is allocated, so
+     * its length is checked against the elements the document holds rather than trusted
+     * @param xml parser positioned at the start of the object element; left at its end
+     * @param builder graph being built
+     * @param id ID of the array
+     * @param arrayClass class of the array
+     * @param length length written for the array
+     */
+    private void readArray(XMLStreamReader xml, GraphBuilder builder, int id, Class arrayClass, int length) throws XMLStreamException {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> texts = new ArrayList<>();
+        long packedChars = 0;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            names.add(xml.getLocalName());
+            texts.add(xml.getElementText()); // Consumes the end element
+            if (xml.getLocalName().equals("packed")) packedChars += texts.get(texts.size() - 1).length();
         }
+        GraphBuilder.checkArrayLength(length, availableElements(arrayClass, names.size(), packedChars));
+        builder.beginObject(id, arrayClass, length);
+        for (int i = 0; i < names.size(); i++) setElement(builder, names.get(i), texts.get(i));
+        builder.endObject();
     }
 
     /**
-     * Sets fields of an ArrayList object
+     * Checks the length of an array's object element against the elements it holds before the
+     * array is allocated
+     * @param objClass class of the object; only arrays are checked
+     * @param length length written for the object
+     * @param obj object element
+     */
+    static void checkArrayLength(Class objClass, int length, Element obj) {
+        if (!objClass.isArray()) return;
+        Element packed = obj.getChild("packed");
+        long packedChars = packed == null ? 0 : packed.getText().length();
+        GraphBuilder.checkArrayLength(length, availableElements(objClass, obj.getContentSize(), packedChars));
+    }
+
+    /**
+     * Gets the most elements an array's object element can hold
+     * @param arrayClass class of the array
+     * @param children number of child elements, each at most one element
+     * @param packedChars base64 chars of packed elements, only counted for primitive arrays
+     * @return upper bound of the array's length
+     */
+    private static long availableElements(Class arrayClass, int children, long packedChars) {
+        Class component = arrayClass.getComponentType();
+        if (!component.isPrimitive()) return children;
+        return children + packedChars * 3 / 4 / PackedArrays.elementSize(component);
+    }
+
+    /**
+     * Deserializes a graph held in a buffer, such as a memory-mapped file
+     * The buffer is read as a stream, without copying the graph to the heap first
      *
-     * @param objToSet ArrayList object to set
-     * @param fieldElems Values to set object to
+     * @param graph buffer holding the XML document or binary graph from its position to its limit
+     * @return HashMap containing deserialized objects
      */
-    private void setArrayListFields(Object objToSet, List<Element> fieldElems) {
+    public Object deserialize(ByteBuffer graph) throws IOException {
+        return deserialize(new ByteBufferInputStream(graph.duplicate()));
+    }
+
+    /**
+     * Deserializes a stream into a builder
+     * @param in stream containing the XML document or binary graph
+     * @param builder graph being built; may hold objects of earlier graphs
+     * @return HashMap containing every object of the builder
+     */
+    Object deserialize(InputStream in, GraphBuilder builder) throws IOException {
+        GraphEvent graphEvent = new GraphEvent(GraphEvent.DESERIALIZE);
+        long start = Metrics.startTime();
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        if (GraphFormat.detect(in) == GraphFormat.BINARY)
+            return recordGraph(new BinaryGraphReader(in).read(builder), builder, graphEvent, start);
+
         try {
-            for (Element fieldElem : fieldElems) {
-                int newValue = Integer.parseInt(fieldElem.getText());
-                Method add = ArrayList.class.getDeclaredMethod("add", new Class[] {Object.class});
-                add.invoke(objToSet, newValue);
+            XMLStreamReader xml = INPUT_FACTORY.createXMLStreamReader(in);
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "object":
+                            String length = xml.getAttributeValue(null, "length");
+                            int objID = Integer.parseInt(xml.getAttributeValue(null, "id"));
+                            String className = xml.getAttributeValue(null, "class");
+                            int objLength = length == null ? -1 : Integer.parseInt(length);
+                            if (objLength > GraphBuilder.MAX_PRESIZE && className.startsWith("["))
+                                readArray(xml, builder, objID, builder.getClassResolver().resolve(className), objLength);
+                            else
+                                builder.beginObject(objID, className, objLength);
+                            break;
+                        case "update":
+                            String updateLength = xml.getAttributeValue(null, "length");
+                            builder.beginUpdate(Integer.parseInt(xml.getAttributeValue(null, "id")),
+                                    updateLength == null ? -1 : Integer.parseInt(updateLength));
+                            break;
+                        case "removed":
+                            builder.remove(Integer.parseInt(xml.getAttributeValue(null, "id")));
+                            break;
+                        case "field":
+                            builder.beginField(xml.getAttributeValue(null, "declaringclass"),
+                                    xml.getAttributeValue(null, "name"));
+                            break;
+                        case "value":
+                        case "reference":
+                            // Parsed straight from the parser's char buffer without making a String
+                            String textElem = xml.getLocalName();
+                            if (xml.next() == XMLStreamConstants.CHARACTERS)
+                                setText(builder, textElem, xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                            else
+                                setText(builder, textElem, new char[0], 0, 0); // Empty element; rejected as invalid
+                            break;
+                        case "packed":
+                        case "null":
+                            String name = xml.getLocalName();
+                            setElement(builder, name, xml.getElementText()); // Consumes the end element
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (xml.getLocalName().equals("field")) builder.endField();
+                    else if (xml.getLocalName().equals("object") || xml.getLocalName().equals("update")) builder.endObject();
+                }
             }
-        } catch (Exception e) { e.printStackTrace(); }
+            xml.close();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+        return recordGraph(builder.finish(), builder, graphEvent, start);
     }
 
     /**
-     * Sets fields/references of an Array object
-     *
-     * @param objToSet Array object to set
-     * @param fieldElems Values to set object to
+     * Records a deserialized graph in the metrics and its Flight Recorder event
+     * @param graph objects of the graph by ID
+     * @param graphEvent event started when deserialization began
+     * @param start time from Metrics.startTime() when deserialization began
+     * @return the graph
      */
-    private void setArrayFields(Object objToSet, List<Element> fieldElems) {
-        int arrayIndex = 0; // Index of the array being set
-        for (Element fieldElem : fieldElems) {
-            String fieldName = fieldElem.getName();
-            // Sets a reference field
-            if (fieldName.equals("reference")) {
-                Object newReference = hMap.get(fieldElem.getText());
-                Array.set(objToSet, arrayIndex++, newReference); // sets reference and increments index
-            }
-            // Sets a value field
-            else {
-                int newValue = Integer.parseInt(fieldElem.getText());
-                Array.setInt(objToSet, arrayIndex++, newValue); // sets value and increments index
-            }
-        }
+    static <T extends Map<Integer, Object>> T recordGraph(T graph, GraphEvent graphEvent, long start) {
+        Metrics.graphDeserialized(start, graph.size());
+        graphEvent.finish(graph.size());
+        return graph;
     }
 
     /**
-     * Sets fields/references of non-Array and non-ArrayList objects
-     * @param objToSet Object to set
-     * @param fieldElems Values to set object to
+     * Records a graph finished by a builder, counting only the objects the graph itself held
+     * The builder of a DeltaDeserializer returns every object of the session, not just the delta
+     * @param graph objects returned by builder.finish()
+     * @param builder builder that finished the graph
      */
-    private void setNonArrayFields(Object objToSet, List<Element> fieldElems) {
-        for (Element fieldElem : fieldElems) {
-            Class decObjClass = null;
-            String decClassName = fieldElem.getAttributeValue("declaringclass");
-            try {
-                decObjClass = Class.forName(decClassName);
-            } catch (ClassNotFoundException e) { e.printStackTrace(); }
-
-            String fieldName = fieldElem.getAttributeValue("name");
-            Field fieldObj = null;
-            try {
-                fieldObj = decObjClass.getDeclaredField(fieldName);
-            } catch (NoSuchFieldException e) { e.printStackTrace(); }
-
-            fieldObj.setAccessible(true);
-
-            List<Element> fields = fieldElem.getChildren();
-            String fieldType = fields.get(0).getName();
-            String newValue = fields.get(0).getText();
-            try {
-                if (fieldType.equals("reference")) {
-                    Object newReference = hMap.get(newValue);
-                    fieldObj.set(objToSet, newReference);
-                } else {
-                    int newIntValue = Integer.valueOf(newValue);
-                    fieldObj.setInt(objToSet, newIntValue);
-                }
-            } catch (IllegalAccessException e) { e.printStackTrace(); }
+    private static HashMap<Integer, Object> recordGraph(HashMap<Integer, Object> graph, GraphBuilder builder,
+                                                        GraphEvent graphEvent, long start) {
+        Metrics.graphDeserialized(start, builder.getFinishedObjectCount());
+        graphEvent.finish(builder.getFinishedObjectCount());
+        return graph;
+    }
+
+    /**
+     * Creates a value object from its object element
+     * @param valueClass boxed primitive class or String
+     * @param obj object element
+     * @return boxed value or String
+     */
+    static Object valueOf(Class valueClass, Element obj) {
+        Element packed = obj.getChild("packed");
+        if (packed != null) {
+            byte[] bytes = Base64.getMimeDecoder().decode(packed.getText());
+            return GraphBuilder.stringOf(valueClass, bytes, 0, bytes.length);
         }
+        char[] text = obj.getChildText("value").toCharArray();
+        return GraphBuilder.valueOf(valueClass, text, 0, text.length);
+    }
+
+    /**
+     * Sets a value or reference element in the object being built from the parser's text buffer
+     * @param builder graph being built
+     * @param elemName name of the element
+     * @param text buffer holding the text of the element
+     * @param start position of the first char
+     * @param length number of chars
+     */
+    private void setText(GraphBuilder builder, String elemName, char[] text, int start, int length) {
+        if (elemName.equals("reference"))
+            builder.reference(PrimitiveCodec.parseInt(text, start, length));
+        else
+            builder.value(text, start, length);
+    }
+
+    /**
+     * Sets a value, packed array, reference, or null element in the object being built
+     * @param builder graph being built
+     * @param elemName name of the element
+     * @param text text of the element
+     */
+    private void setElement(GraphBuilder builder, String elemName, String text) {
+        if (elemName.equals("reference"))
+            builder.reference(Integer.parseInt(text.trim()));
+        else if (elemName.equals("null"))
+            builder.nullValue();
+        else if (elemName.equals("packed")) {
+            byte[] bytes = Base64.getMimeDecoder().decode(text); // MIME decoding skips any whitespace
+            builder.packedValues(bytes, 0, bytes.length);
+        } else
+            builder.value(text);
     }
 }
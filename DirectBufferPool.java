@@ -0,0 +1,61 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size direct ByteBuffers reused across transfers
+ * Direct buffers are expensive to allocate and are read into and written from by channels
+ * without an extra copy, so they are kept instead of discarded
+ *
+ * @author Sukhjot Sekhon
+ */
+public class DirectBufferPool {
+    private static final DirectBufferPool SHARED = new DirectBufferPool(64 * 1024, 64);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize capacity of every buffer
+     * @param maxPooled maximum number of idle buffers kept
+     */
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Gets the pool shared by the socket transfers
+     * @return shared pool of 64 KB buffers
+     */
+    public static DirectBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if none is idle
+     * @return buffer to use until it is released
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool
+     * @param buffer buffer taken from this pool; must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+}
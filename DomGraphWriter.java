@@ -0,0 +1,124 @@
+import java.lang.reflect.Array;
+import java.util.Base64;
+import org.jdom2.Document;
+import org.jdom2.Element;
+
+/**
+ * Builds a JDOM document from a serialized object graph
+ * Keeps the whole document in memory; use XmlGraphWriter to stream large graphs
+ *
+ * @author Sukhjot Sekhon
+ */
+public class DomGraphWriter implements GraphWriter {
+    private Document document;
+    private Element elemObject; // Object element currently being written
+    private Element parentElem; // Object or field element receiving values and references
+    private final char[] text = new char[PrimitiveCodec.MAX_LENGTH]; // Formatted primitive value
+
+    public void beginGraph() {
+        document = new Document();
+        document.setRootElement(new Element("serialized"));
+    }
+
+    public void beginObject(int id, Class objClass, int length) {
+        addObjectElement("object", id, objClass, length);
+    }
+
+    public void beginUpdate(int id, Class objClass, int length) {
+        addObjectElement("update", id, objClass, length);
+    }
+
+    public void writeRemoved(int id) {
+        Element elemRemoved = new Element("removed");
+        elemRemoved.setAttribute("id", Integer.toString(id));
+        document.getRootElement().addContent(elemRemoved);
+    }
+
+    private void addObjectElement(String elemName, int id, Class objClass, int length) {
+        elemObject = new Element(elemName);
+        elemObject.setAttribute("class", objClass.getName());
+        elemObject.setAttribute("id", Integer.toString(id));
+        if (length >= 0) elemObject.setAttribute("length", Integer.toString(length));
+        document.getRootElement().addContent(elemObject);
+        parentElem = elemObject;
+    }
+
+    public void beginField(FieldAccessor field) {
+        Element elemField = new Element("field");
+        elemField.setAttribute("name", field.getName());
+        elemField.setAttribute("declaringclass", field.getDeclaringClassName());
+        elemObject.addContent(elemField);
+        parentElem = elemField;
+    }
+
+    public void endField() {
+        parentElem = elemObject;
+    }
+
+    public void writeValue(Object value) {
+        if (value instanceof String && !XmlGraphWriter.isXmlText((String) value))
+            writePackedArray(((String) value).toCharArray()); // Same as XmlGraphWriter
+        else if (value instanceof String) addValueElement((String) value);
+        else addValueElement(PrimitiveCodec.format(value, text));
+    }
+
+    public void writeInt(int value) { addValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeLong(long value) { addValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeDouble(double value) { addValueElement(PrimitiveCodec.formatDouble(value, text)); }
+
+    public void writeFloat(float value) { addValueElement(PrimitiveCodec.formatFloat(value, text)); }
+
+    public void writeShort(short value) { addValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeChar(char value) { addValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeByte(byte value) { addValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeBoolean(boolean value) { addValueElement(PrimitiveCodec.formatBoolean(value, text)); }
+
+    private void addValueElement(int length) {
+        addValueElement(new String(text, 0, length));
+    }
+
+    private void addValueElement(String value) {
+        Element elemValue = new Element("value");
+        elemValue.setText(value);
+        parentElem.addContent(elemValue);
+    }
+
+    public void writePackedArray(Object array) {
+        int length = Array.getLength(array);
+        byte[] bytes = new byte[length * PackedArrays.elementSize(array.getClass().getComponentType())];
+        PackedArrays.pack(array, 0, length, bytes, 0);
+        Element elemPacked = new Element("packed");
+        elemPacked.setText(Base64.getEncoder().encodeToString(bytes));
+        parentElem.addContent(elemPacked);
+    }
+
+    public void writeReference(int id) {
+        Element elemReference = new Element("reference");
+        elemReference.setText(Integer.toString(id));
+        parentElem.addContent(elemReference);
+    }
+
+    public void writeNull() {
+        parentElem.addContent(new Element("null"));
+    }
+
+    public void endObject() {
+        elemObject = null;
+        parentElem = null;
+    }
+
+    public void endGraph() {}
+
+    /**
+     * Gets the document built so far
+     * @return XML document containing serialized objects
+     */
+    public Document getDocument() {
+        return document;
+    }
+}
@@ -0,0 +1,140 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Fast accessor for a single non-static field
+ * Reads and writes go through a VarHandle; final fields are written through an unreflected MethodHandle
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class FieldAccessor {
+    private final Field field;
+    private final String name;
+    private final String declaringClassName;
+    private final Class type;
+    private final int index; // Position of this field in its ClassDescriptor
+    private final VarHandle handle;
+    private final MethodHandle finalSetter; // Only used when the field is final
+
+    FieldAccessor(Field field, int index) {
+        this.field = field;
+        this.name = field.getName();
+        this.declaringClassName = field.getDeclaringClass().getName();
+        this.type = field.getType();
+        this.index = index;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+            handle = lookup.unreflectVarHandle(field);
+            if (Modifier.isFinal(field.getModifiers())) {
+                field.setAccessible(true);
+                finalSetter = lookup.unreflectSetter(field);
+            } else {
+                finalSetter = null;
+            }
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalStateException("Cannot access field " + declaringClassName + "." + name, e);
+        }
+    }
+
+    /**
+     * Reads the field value, boxing primitives
+     * @param obj object to read from
+     * @return value of the field
+     */
+    public Object get(Object obj) {
+        return handle.get(obj);
+    }
+
+    /**
+     * Writes a value (boxed for primitives) to the field
+     * @param obj object to write to
+     * @param value new value of the field
+     */
+    public void set(Object obj, Object value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    // Typed reads and writes of primitive fields; values are never boxed except for final fields
+
+    public int getInt(Object obj) { return (int) handle.get(obj); }
+
+    public long getLong(Object obj) { return (long) handle.get(obj); }
+
+    public double getDouble(Object obj) { return (double) handle.get(obj); }
+
+    public float getFloat(Object obj) { return (float) handle.get(obj); }
+
+    public short getShort(Object obj) { return (short) handle.get(obj); }
+
+    public char getChar(Object obj) { return (char) handle.get(obj); }
+
+    public byte getByte(Object obj) { return (byte) handle.get(obj); }
+
+    public boolean getBoolean(Object obj) { return (boolean) handle.get(obj); }
+
+    public void setInt(Object obj, int value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setLong(Object obj, long value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setDouble(Object obj, double value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setFloat(Object obj, float value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setShort(Object obj, short value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setChar(Object obj, char value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setByte(Object obj, byte value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    public void setBoolean(Object obj, boolean value) {
+        if (finalSetter == null) handle.set(obj, value);
+        else setFinal(obj, value);
+    }
+
+    private void setFinal(Object obj, Object value) {
+        try {
+            finalSetter.invoke(obj, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Cannot set final field " + declaringClassName + "." + name, t);
+        }
+    }
+
+    public Field getField() { return field; }
+
+    public String getName() { return name; }
+
+    public String getDeclaringClassName() { return declaringClassName; }
+
+    public Class getType() { return type; }
+
+    public int getIndex() { return index; }
+
+    public boolean isFinal() { return finalSetter != null; }
+
+    VarHandle getHandle() { return handle; }
+}
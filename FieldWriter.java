@@ -0,0 +1,51 @@
+import java.io.IOException;
+
+/**
+ * Receives the fields of one object as a ClassCodec writes them
+ * GraphWriter extends it to write the fields in a format; other implementations record them,
+ * such as the shadow copies of a DeltaSerializer
+ *
+ * @author Sukhjot Sekhon
+ */
+public interface FieldWriter {
+
+    /**
+     * Starts a field of the current object
+     * @param field field being written
+     */
+    void beginField(FieldAccessor field) throws IOException;
+
+    /**
+     * Ends the current field
+     */
+    void endField() throws IOException;
+
+    // Typed writes of the value of a primitive field, so the value is never boxed
+
+    void writeInt(int value) throws IOException;
+
+    void writeLong(long value) throws IOException;
+
+    void writeDouble(double value) throws IOException;
+
+    void writeFloat(float value) throws IOException;
+
+    void writeShort(short value) throws IOException;
+
+    void writeChar(char value) throws IOException;
+
+    void writeByte(byte value) throws IOException;
+
+    void writeBoolean(boolean value) throws IOException;
+
+    /**
+     * Writes a reference to another object
+     * @param id ID of the referenced object
+     */
+    void writeReference(int id) throws IOException;
+
+    /**
+     * Writes a null reference
+     */
+    void writeNull() throws IOException;
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reassembles the connection header and frames of one connection from arbitrarily split reads
+ * Keeps only a few bytes of state between frames, so idle connections stay cheap; a frame's buffer
+ * grows as its bytes arrive rather than to the length announced, so a prefix alone reserves little
+ *
+ * @author Sukhjot Sekhon
+ */
+public class FrameAssembler {
+    private static final int INITIAL_PAYLOAD = 8 * 1024;
+
+    private final byte[] header = new byte[FrameProtocol.HEADER_LENGTH];
+    private int headerRead;
+    private int offeredOptions = -1; // Options offered in the header; -1 until it is complete
+    private int length; // Length prefix of the frame being read
+    private int lengthRead; // Bytes of the length prefix read so far
+    private byte[] payload; // Payload of the frame being read, at most length bytes; null between frames
+    private int payloadRead;
+
+    /**
+     * Consumes the remaining bytes of a buffer
+     * Stops right after the connection header is complete, so the header can be answered before
+     * any frame is handed out; the bytes after it are consumed by the next call
+     * @param in bytes read from the connection
+     * @param frames receives the payload of every frame completed by these bytes
+     */
+    public void feed(ByteBuffer in, Consumer<byte[]> frames) throws IOException {
+        while (in.hasRemaining()) {
+            if (headerRead < header.length) {
+                header[headerRead++] = in.get();
+                if (headerRead == header.length) {
+                    offeredOptions = FrameProtocol.checkHeader(header);
+                    return;
+                }
+            } else if (payload == null) {
+                length = (length << 8) | (in.get() & 0xFF);
+                if (++lengthRead == 4) {
+                    FrameProtocol.checkFrameLength(length);
+                    payload = new byte[Math.min(length, INITIAL_PAYLOAD)];
+                    payloadRead = 0;
+                }
+            } else {
+                int count = Math.min(in.remaining(), length - payloadRead);
+                if (payloadRead + count > payload.length)
+                    payload = Arrays.copyOf(payload, Math.min(length, Math.max(payload.length * 2, payloadRead + count)));
+                in.get(payload, payloadRead, count);
+                payloadRead += count;
+                if (payloadRead == length) completeFrame(frames);
+            }
+        }
+    }
+
+    /**
+     * Gets the options the sender offered in the connection header
+     * @return offered options, or -1 if the header has not been fully read
+     */
+    public int getOfferedOptions() {
+        return offeredOptions;
+    }
+
+    /**
+     * Checks whether the assembler is between frames
+     * @return true if no partial frame is buffered
+     */
+    public boolean isIdle() {
+        return payload == null && lengthRead == 0;
+    }
+
+    private void completeFrame(Consumer<byte[]> frames) {
+        byte[] frame = payload;
+        payload = null;
+        length = 0;
+        lengthRead = 0;
+        frames.accept(frame);
+    }
+}
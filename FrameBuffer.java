@@ -0,0 +1,102 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reusable growable buffer holding the payload of one frame
+ * Written to by the Serializer on the sending side and filled from the connection on the receiving side
+ *
+ * @author Sukhjot Sekhon
+ */
+public class FrameBuffer extends ByteArrayOutputStream {
+    private static final int INITIAL_SIZE = 8192;
+    static final int MAX_RETAINED = 1024 * 1024; // Larger arrays are dropped by trim
+
+    public FrameBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * Empties the buffer, dropping the internal array if a large frame grew it past MAX_RETAINED
+     * Keeps one large frame from holding its memory for as long as the buffer is reused
+     */
+    public void trim() {
+        if (buf.length > MAX_RETAINED) buf = new byte[INITIAL_SIZE];
+        count = 0;
+    }
+
+    /**
+     * Replaces the contents with the next frame read from a connection
+     * @param in stream of the connection
+     * @return false if the connection ended cleanly before another frame
+     */
+    public boolean readFrame(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) return false;
+        fill(in, length);
+        return true;
+    }
+
+    /**
+     * Reads the length prefix of the next frame
+     * @param in stream of the connection
+     * @return length of the frame payload, or -1 if the connection ended cleanly before another frame
+     */
+    public static int readLength(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return -1; // No partial length, so the sender closed between frames
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        FrameProtocol.checkFrameLength(length);
+        return length;
+    }
+
+    /**
+     * Replaces the contents with bytes read from a stream
+     * @param in stream to read from
+     * @param length number of bytes to read
+     */
+    public void fill(DataInputStream in, int length) throws IOException {
+        in.readFully(resize(length), 0, length);
+    }
+
+    /**
+     * Sets the size, growing the internal array if needed; the contents become undefined
+     * @param length new size
+     * @return backing array to fill
+     */
+    public byte[] resize(int length) {
+        if (buf.length < length) buf = new byte[Math.max(length, buf.length * 2)];
+        count = length;
+        return buf;
+    }
+
+    /**
+     * Sets the size, growing the internal array if needed while keeping the contents
+     * @param length new size, at least the current size
+     * @return backing array to fill past the old size
+     */
+    public byte[] extend(int length) {
+        if (buf.length < length) buf = Arrays.copyOf(buf, Math.max(length, buf.length * 2));
+        count = length;
+        return buf;
+    }
+
+    /**
+     * Gets the internal array without copying; only the first size() bytes are valid
+     * @return backing array
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Reads the contents without copying
+     * @return stream over the current contents
+     */
+    public InputStream inputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
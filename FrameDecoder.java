@@ -0,0 +1,107 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the frames of one receiving connection, undoing the compression applied by FrameEncoder
+ * Frames must be decoded in the order they were received, since DEFLATE frames use the
+ * dictionary of the last DICTIONARY frame
+ *
+ * The buffer of an inflated graph grows as the graph is inflated rather than to the length the
+ * frame declares, so a short frame claiming a large graph reserves little
+ *
+ * @author Sukhjot Sekhon
+ */
+public class FrameDecoder {
+    private static final int INITIAL_INFLATED = 8 * 1024;
+    private static final Budget UNLIMITED = bytes -> {};
+
+    /**
+     * Memory budget charged for inflated bytes
+     */
+    public interface Budget {
+        /**
+         * Reserves memory before the buffer of an inflated graph grows
+         * @param bytes number of bytes the buffer grows by
+         */
+        void reserve(int bytes) throws IOException;
+    }
+
+    private final Inflater inflater = new Inflater();
+    private final FrameBuffer inflated = new FrameBuffer();
+    private byte[] dictionary;
+
+    /**
+     * Decodes one frame
+     * @param frame payload of the frame
+     * @param length length of the payload
+     * @return stream over the serialized graph, or null if the frame only carried a dictionary;
+     *         valid until the next frame is decoded
+     */
+    public InputStream decode(byte[] frame, int length) throws IOException {
+        return decode(frame, length, UNLIMITED);
+    }
+
+    /**
+     * Decodes one frame, charging the inflated graph to a budget as it grows
+     * @param frame payload of the frame
+     * @param length length of the payload
+     * @param budget reserves memory for the inflated bytes; the caller returns it once the
+     *               stream is no longer in use
+     * @return stream over the serialized graph, or null if the frame only carried a dictionary;
+     *         valid until the next frame is decoded
+     */
+    public InputStream decode(byte[] frame, int length, Budget budget) throws IOException {
+        Metrics.BYTES_RECEIVED.add(4 + length); // Length prefix included, as frames are counted when sent
+        int type = frame[0];
+        if (type == FrameProtocol.FRAME_RAW)
+            return new ByteArrayInputStream(frame, 1, length - 1);
+        if (type == FrameProtocol.FRAME_DICTIONARY) {
+            dictionary = Arrays.copyOfRange(frame, 1, length);
+            return null;
+        }
+        if (type != FrameProtocol.FRAME_DEFLATE) throw new IOException("Unknown frame type " + type);
+        if (length < 5) throw new IOException("Compressed frame is too short");
+
+        int size = ((frame[1] & 0xFF) << 24) | ((frame[2] & 0xFF) << 16) | ((frame[3] & 0xFF) << 8) | (frame[4] & 0xFF);
+        FrameProtocol.checkFrameLength(size); // Rejects oversized output before inflating
+        int capacity = Math.min(size, INITIAL_INFLATED);
+        budget.reserve(capacity);
+        byte[] out = inflated.resize(capacity);
+        inflater.reset();
+        inflater.setInput(frame, 5, length - 5);
+        try {
+            int inflatedLength = 0;
+            while (inflatedLength < size) {
+                if (inflatedLength == capacity) {
+                    int grown = (int) Math.min(size, capacity * 2L);
+                    budget.reserve(grown - capacity);
+                    out = inflated.extend(grown);
+                    capacity = grown;
+                }
+                int count = inflater.inflate(out, inflatedLength, capacity - inflatedLength);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) throw new IOException("Compressed frame before any dictionary");
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Compressed frame is shorter than its length");
+                    }
+                }
+                inflatedLength += count;
+            }
+        } catch (DataFormatException e) { throw new IOException(e); }
+        return inflated.inputStream();
+    }
+
+    /**
+     * Drops the buffer of inflated graphs if a large frame grew it; the stream returned by the
+     * last decode must no longer be in use
+     */
+    public void trim() {
+        inflated.trim();
+    }
+}
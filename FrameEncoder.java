@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.zip.Deflater;
+
+/**
+ * Turns serialized graphs into frames for one sending connection
+ * When compression was negotiated, graphs at or above a size threshold are deflated with a preset
+ * dictionary seeded from the XML vocabulary and the class and field names sent on the connection;
+ * the dictionary is sent as its own frame whenever a graph introduces new classes
+ *
+ * @author Sukhjot Sekhon
+ */
+public class FrameEncoder {
+    static final int DEFAULT_THRESHOLD = 512; // Graphs smaller than this gain little and are sent raw
+    private static final int MAX_DICTIONARY_LENGTH = 32 * 1024; // Deflate only looks back 32 KB
+
+    // Placed at the end of the dictionary, where deflate references are cheapest
+    private static final String XML_VOCABULARY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><serialized>"
+            + "<update class=\"\" id=\"\"></update><removed id=\"\"/></serialized><object class=\"\" id=\"\" length=\"\"></object><null/><reference></reference>"
+            + "<field name=\"\" declaringclass=\"\"><value></value></field><packed></packed>";
+
+    private final Deflater deflater = new Deflater();
+    private volatile boolean compress;
+    private int threshold = DEFAULT_THRESHOLD;
+    private final LinkedHashSet<Class> knownClasses = new LinkedHashSet<>(); // Classes whose names are in the dictionary
+    private boolean dictionaryChanged;
+    private byte[] dictionary;
+    private byte[] deflateBuffer = new byte[8192];
+
+    /**
+     * @param compress true if the receiver accepted compressed frames
+     */
+    public FrameEncoder(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Enables or disables compression, for example once the receiver has answered the header
+     * @param compress true if the receiver accepted compressed frames
+     */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Sets the smallest graph that is compressed
+     * @param threshold size in bytes
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Wraps the writer of a graph so the classes it contains are added to the dictionary
+     * @param writer writer the graph is serialized with
+     * @return writer to pass to the Serializer
+     */
+    public GraphWriter track(GraphWriter writer) {
+        return new GraphWriter() {
+            public void beginGraph() throws IOException { writer.beginGraph(); }
+            public void beginObject(int id, Class objClass, int length) throws IOException {
+                if (knownClasses.add(objClass)) dictionaryChanged = true;
+                writer.beginObject(id, objClass, length);
+            }
+            public void beginUpdate(int id, Class objClass, int length) throws IOException {
+                if (knownClasses.add(objClass)) dictionaryChanged = true;
+                writer.beginUpdate(id, objClass, length);
+            }
+            public void writeRemoved(int id) throws IOException { writer.writeRemoved(id); }
+            public void beginField(FieldAccessor field) throws IOException { writer.beginField(field); }
+            public void endField() throws IOException { writer.endField(); }
+            public void writeValue(Object value) throws IOException { writer.writeValue(value); }
+            public void writeInt(int value) throws IOException { writer.writeInt(value); }
+            public void writeLong(long value) throws IOException { writer.writeLong(value); }
+            public void writeDouble(double value) throws IOException { writer.writeDouble(value); }
+            public void writeFloat(float value) throws IOException { writer.writeFloat(value); }
+            public void writeShort(short value) throws IOException { writer.writeShort(value); }
+            public void writeChar(char value) throws IOException { writer.writeChar(value); }
+            public void writeByte(byte value) throws IOException { writer.writeByte(value); }
+            public void writeBoolean(boolean value) throws IOException { writer.writeBoolean(value); }
+            public void writePackedArray(Object array) throws IOException { writer.writePackedArray(array); }
+            public void writeReference(int id) throws IOException { writer.writeReference(id); }
+            public void writeNull() throws IOException { writer.writeNull(); }
+            public void endObject() throws IOException { writer.endObject(); }
+            public void endGraph() throws IOException { writer.endGraph(); }
+        };
+    }
+
+    /**
+     * Appends the frames carrying a serialized graph, including a new dictionary if needed
+     * @param graph serialized graph
+     * @param out buffer receiving the frames, length prefixes included
+     * @return number of frames appended
+     */
+    public int encode(FrameBuffer graph, FrameBuffer out) {
+        int start = out.size();
+        int frames = writeFrames(graph, out);
+        if (Metrics.ENABLED) {
+            Metrics.BYTES_ENCODED.add(graph.size());
+            Metrics.BYTES_SENT.add(out.size() - start);
+        }
+        return frames;
+    }
+
+    /**
+     * Appends the frames of a graph
+     * @return number of frames appended: the graph, after a dictionary if one was built
+     */
+    private int writeFrames(FrameBuffer graph, FrameBuffer out) {
+        int frames = 1;
+        if (compress && graph.size() >= threshold) {
+            if (dictionaryChanged || dictionary == null) {
+                dictionary = buildDictionary();
+                dictionaryChanged = false;
+                writeInt(out, 1 + dictionary.length);
+                out.write(FrameProtocol.FRAME_DICTIONARY);
+                out.write(dictionary, 0, dictionary.length);
+                frames++;
+            }
+
+            int compressedLength = deflate(graph);
+            if (compressedLength + 4 < graph.size()) {
+                writeInt(out, 1 + 4 + compressedLength);
+                out.write(FrameProtocol.FRAME_DEFLATE);
+                writeInt(out, graph.size());
+                out.write(deflateBuffer, 0, compressedLength);
+                return frames;
+            }
+        }
+        writeInt(out, 1 + graph.size());
+        out.write(FrameProtocol.FRAME_RAW);
+        out.write(graph.array(), 0, graph.size());
+        return frames;
+    }
+
+    private int deflate(FrameBuffer graph) {
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(graph.array(), 0, graph.size());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflateBuffer.length) deflateBuffer = Arrays.copyOf(deflateBuffer, length * 2);
+            length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+        }
+        return length;
+    }
+
+    private byte[] buildDictionary() {
+        StringBuilder names = new StringBuilder();
+        for (Class objClass : knownClasses) {
+            names.append(objClass.getName()).append('"');
+            if (objClass.isArray() || objClass.getName().startsWith("java.")) continue;
+            for (FieldAccessor field : ClassDescriptor.forClass(objClass).getFields())
+                names.append(field.getName()).append('"').append(field.getDeclaringClassName()).append('"');
+        }
+        names.append(XML_VOCABULARY);
+
+        byte[] bytes = names.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_DICTIONARY_LENGTH) return bytes;
+        return Arrays.copyOfRange(bytes, bytes.length - MAX_DICTIONARY_LENGTH, bytes.length); // Keep the vocabulary
+    }
+
+    private static void writeInt(FrameBuffer out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Length-prefixed framing used to carry many object graphs over one long-lived connection
+ *
+ * A connection starts with a header from the sender (magic bytes, version, and the options it
+ * offers) answered by one byte from the receiver with the options it accepts. Every frame that
+ * follows is a 4-byte big-endian payload length and then the payload, whose first byte is the
+ * frame type:
+ *      - RAW: a serialized graph
+ *      - DEFLATE: 4-byte uncompressed length and a graph compressed with the current dictionary
+ *      - DICTIONARY: new preset dictionary for the DEFLATE frames after it
+ *
+ * With the DELTA option, the graphs of a connection form one DeltaSerializer session: each
+ * graph after the first only carries what changed and is applied to the graph before it
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class FrameProtocol {
+    static final byte[] MAGIC = {'R', 'S', 'O', 'C'};
+    static final byte VERSION = 2;
+    static final int HEADER_LENGTH = MAGIC.length + 2;
+    static final int MAX_FRAME_LENGTH = 256 << 20; // Rejects corrupt lengths before allocating
+
+    static final int OPTION_DEFLATE = 1; // Sender may send DEFLATE and DICTIONARY frames
+    static final int OPTION_DELTA = 2; // Graphs are deltas of one session
+    static final int SUPPORTED_OPTIONS = OPTION_DEFLATE | OPTION_DELTA;
+
+    static final int FRAME_RAW = 0;
+    static final int FRAME_DEFLATE = 1;
+    static final int FRAME_DICTIONARY = 2;
+
+    private FrameProtocol() {}
+
+    /**
+     * Writes the connection header
+     * @param out stream of a new connection
+     * @param options options offered by the sender
+     */
+    static void writeHeader(DataOutputStream out, int options) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(options);
+    }
+
+    /**
+     * Reads and checks the connection header
+     * @param in stream of a new connection
+     * @return options offered by the sender
+     */
+    static int readHeader(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        in.readFully(header);
+        return checkHeader(header);
+    }
+
+    /**
+     * Checks a connection header
+     * @param header header bytes sent by the sender
+     * @return options offered by the sender
+     */
+    static int checkHeader(byte[] header) throws IOException {
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length))
+            throw new IOException("Not a framed object connection");
+        int version = header[MAGIC.length] & 0xFF;
+        if (version != VERSION) throw new IOException("Unsupported frame protocol version " + version);
+        return header[MAGIC.length + 1] & 0xFF;
+    }
+
+    /**
+     * Chooses the options a receiver accepts from those offered
+     * @param offered options offered by the sender
+     * @return options both sides support, sent back to the sender as one byte
+     */
+    static int acceptOptions(int offered) {
+        return offered & SUPPORTED_OPTIONS;
+    }
+
+    /**
+     * Creates the deserializer for the graphs of one connection
+     * @param accepted options accepted for the connection
+     * @return deserializer keeping the graph of the session for delta connections
+     */
+    static Deserializer newDeserializer(int accepted) {
+        return (accepted & OPTION_DELTA) != 0 ? new DeltaDeserializer() : new Deserializer();
+    }
+
+    /**
+     * Reads a graph of a connection with the deserializer created for it by newDeserializer
+     * Those deserializers build every object, so the graph is always a HashMap
+     * @param deserializer deserializer of the connection
+     * @param graph stream containing the graph
+     * @return HashMap containing deserialized objects
+     */
+    @SuppressWarnings("unchecked")
+    static HashMap<Integer, Object> readGraph(Deserializer deserializer, InputStream graph) throws IOException {
+        return (HashMap<Integer, Object>) deserializer.deserialize(graph);
+    }
+
+    /**
+     * Checks a frame length read from the connection
+     * @param length length prefix of a frame
+     */
+    static void checkFrameLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) throw new IOException("Invalid frame length " + length);
+    }
+}
@@ -0,0 +1,697 @@
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rebuilds an object graph from the elements of a serialized document in a single pass
+ * Objects are instantiated as they arrive; references to objects that have not arrived yet
+ * are kept in a compact patch list and set once the target object is instantiated
+ *
+ * A builder can instead populate objects that were all instantiated beforehand; several such
+ * builders can then populate different objects of the same graph at once
+ *
+ * Collections and maps are created presized and only filled once the whole graph is built,
+ * so hashed elements and keys are added with their fields already set. Boxed primitives and
+ * Strings are immutable and are created when their value arrives
+ *
+ * @author Sukhjot Sekhon
+ */
+public class GraphBuilder {
+    private static final int NO_PATCH = -1;
+    private static final int NOT_VISITED = 0;
+    private static final int VISITING = 1;
+    private static final int FILLED = 2;
+    private static final Object MISSING = new Object(); // Collection element whose object never arrived
+    static final int MAX_ID_GAP = 1 << 20; // How far IDs may run ahead of the objects and references read
+    static final int MAX_PRESIZE = 1 << 16; // Collections and maps claiming more elements grow past it as they are filled
+
+    private Object[] objects = new Object[64]; // Instantiated objects indexed by ID
+    private final HashMap<Integer, Object> graph = new HashMap<>(); // Same objects, kept for finish as they change
+    private int graphObjectCount; // Objects added or updated by the graph being read
+    private int finishedObjectCount; // Same, for the last finished graph
+
+    // Patch list kept as parallel arrays; patches waiting on the same ID are chained through patchNext
+    private int[] patchHeads = new int[64]; // First patch waiting on each ID
+    private Object[] patchHolders = new Object[16]; // Object holding the unresolved reference
+    private int[] patchSlots = new int[16]; // Field index or array index to set in the holder
+    private int[] patchNext = new int[16];
+    private int patchCount;
+    private int unresolvedCount;
+    private int idsRead; // Objects and references read, which bound the IDs accepted
+
+    private int currentID;
+    private Object current; // Object currently being populated
+    private ClassDescriptor currentDescriptor; // Set for objects populated field by field
+    private ClassCodec currentCodec; // Codec of currentDescriptor's class
+    private FieldAccessor currentField;
+    private boolean currentIsArray;
+    private int elementIndex; // Next array index of the current object
+    private CollectionFill currentFill; // Set for collections and maps
+    private Class currentValueClass; // Set for a value object waiting for its value
+    private boolean prebuilt; // Every object was instantiated before population started
+
+    private final ClassResolver classResolver;
+    private final ArrayList<CollectionFill> fills = new ArrayList<>(); // Contents of every collection and map read
+
+    /**
+     * Contents of a collection or map, added once every object in the graph is populated
+     * Elements are IDs (0 for null) or, for documents written before collections held references,
+     * inline values
+     */
+    static final class CollectionFill {
+        final int id;
+        final Object target;
+        boolean replacing; // Contents replace those of a collection received by an earlier graph
+        private int visit; // Ordering state in fillCollections: NOT_VISITED, VISITING, or FILLED
+        private int nextElement; // Next element fillCollections checks for a collection to fill first
+        private int[] ids;
+        private Object[] values; // Created on the first inline value
+        private int count;
+
+        CollectionFill(int id, Object target, int expected) {
+            this.id = id;
+            this.target = target;
+            ids = new int[Math.max(Math.min(expected, MAX_PRESIZE), 8)];
+        }
+
+        void addReference(int elementID) {
+            ensureRoom();
+            ids[count++] = elementID;
+        }
+
+        void addValue(Object value) {
+            if (values == null) values = new Object[ids.length];
+            ensureRoom();
+            values[count] = value;
+            ids[count++] = 0;
+        }
+
+        /**
+         * Adds the elements or entries through the Collection or Map interface
+         * Elements and entries whose referenced object is missing are left out
+         * @param objects every object of the graph indexed by ID
+         * @return number of references to missing objects
+         */
+        int fill(Object[] objects) {
+            int missing = 0;
+            if (target instanceof Map) {
+                Map map = (Map) target;
+                if (replacing) map.clear();
+                for (int i = 0; i + 1 < count; i += 2) {
+                    Object key = element(i, objects);
+                    Object value = element(i + 1, objects);
+                    if (key == MISSING || value == MISSING) missing++;
+                    else map.put(key, value);
+                }
+            } else {
+                Collection collection = (Collection) target;
+                if (replacing) collection.clear();
+                for (int i = 0; i < count; i++) {
+                    Object element = element(i, objects);
+                    if (element == MISSING) missing++;
+                    else collection.add(element);
+                }
+            }
+            return missing;
+        }
+
+        private Object element(int i, Object[] objects) {
+            if (values != null && values[i] != null) return values[i];
+            if (ids[i] == 0) return null;
+            Object element = ids[i] < objects.length ? objects[ids[i]] : null;
+            return element == null ? MISSING : element;
+        }
+
+        private void ensureRoom() {
+            if (count < ids.length) return;
+            ids = Arrays.copyOf(ids, count * 2);
+            if (values != null) values = Arrays.copyOf(values, count * 2);
+        }
+    }
+
+    public GraphBuilder() {
+        this(ClassResolver.getDefault());
+    }
+
+    /**
+     * @param classResolver resolves the class names of arriving objects
+     */
+    public GraphBuilder(ClassResolver classResolver) {
+        this.classResolver = classResolver;
+        Arrays.fill(patchHeads, NO_PATCH);
+    }
+
+    /**
+     * Creates a builder populating objects that are already instantiated
+     * The objects array is only read, so builders on different threads may share it
+     * as long as each object is populated by one builder
+     * @param objects instantiated objects indexed by ID
+     */
+    public GraphBuilder(Object[] objects) {
+        this.objects = objects;
+        classResolver = ClassResolver.getDefault(); // Never used; objects are not instantiated
+        prebuilt = true;
+    }
+
+    /**
+     * Instantiates an object and sets any references that were waiting for it
+     * Value objects (boxed primitives and Strings) are only created once their value is set
+     * @param id ID of the object
+     * @param className name of the object's class
+     * @param length number of elements for arrays, collections, and maps; -1 otherwise
+     * @return the instantiated object; null for value objects
+     */
+    public Object beginObject(int id, String className, int length) {
+        return beginObject(id, classResolver.resolve(className), length);
+    }
+
+    /**
+     * Instantiates an object of an already resolved class; see beginObject(int, String, int)
+     * @param id ID of the object
+     * @param objClass class of the object
+     * @param length number of elements for arrays, collections, and maps; -1 otherwise
+     * @return the instantiated object; null for value objects
+     */
+    public Object beginObject(int id, Class objClass, int length) {
+        ensureCapacity(id);
+        currentID = id;
+        graphObjectCount++;
+        if (ObjectKind.of(objClass) == ObjectKind.VALUE) {
+            select(null, -1);
+            currentValueClass = objClass;
+            return null;
+        }
+
+        Object objLoaded = instantiate(objClass, length, classResolver);
+        objects[id] = objLoaded;
+        graph.put(id, objLoaded);
+        resolvePatches(id, objLoaded);
+        select(objLoaded, length);
+        return objLoaded;
+    }
+
+    /**
+     * Selects an object received by an earlier graph to update in place
+     * Following values are set to the fields named; the contents of arrays, collections, and
+     * maps are replaced
+     * @param id ID of the object
+     * @param length number of elements for arrays, collections, and maps; -1 otherwise
+     * @return the updated object
+     * @throws IllegalArgumentException if no earlier graph received an object with the ID
+     */
+    public Object beginUpdate(int id, int length) {
+        currentID = id;
+        Object existing = id >= 0 && id < objects.length ? objects[id] : null;
+        if (existing == null) throw new IllegalArgumentException("Update of unknown object " + id);
+        graphObjectCount++;
+        select(existing, length);
+        if (currentFill != null) currentFill.replacing = true;
+        return existing;
+    }
+
+    /**
+     * Removes an object that is no longer part of the graph
+     * References to it that were already set are left as they are
+     * @param id ID of the object
+     */
+    public void remove(int id) {
+        if (id < objects.length && objects[id] != null) {
+            objects[id] = null;
+            graph.remove(id);
+        }
+    }
+
+    /**
+     * Selects an already instantiated object to populate
+     * @param id ID of the object
+     */
+    public void populate(int id) {
+        currentID = id;
+        select(objects[id], -1);
+    }
+
+    /**
+     * Selects the field of the current object that following values and references are set to
+     * @param declaringClassName name of the class declaring the field
+     * @param fieldName name of the field
+     */
+    public void beginField(String declaringClassName, String fieldName) {
+        if (currentDescriptor == null) return; // Update of an unknown object
+        currentField = currentDescriptor.getField(declaringClassName, fieldName);
+        if (currentField == null)
+            System.out.println("Unknown field " + declaringClassName + "." + fieldName);
+    }
+
+    /**
+     * Selects the field of the current object that following values and references are set to
+     * @param field field of the current object's class; null to ignore the following value
+     */
+    public void beginField(FieldAccessor field) {
+        currentField = field;
+    }
+
+    /**
+     * Ends the current field
+     */
+    public void endField() {
+        currentField = null;
+    }
+
+    /**
+     * Sets a primitive value in the current field or next element of the current object
+     * @param text value as written in the document
+     */
+    public void value(String text) {
+        value(text.toCharArray(), 0, text.length());
+    }
+
+    /**
+     * Sets a primitive value in the current field or next element of the current object
+     * The text is parsed as the type of the field or array element it is set to
+     * @param text buffer holding the value as written in the document
+     * @param start position of the first char
+     * @param length number of chars
+     */
+    public void value(char[] text, int start, int length) {
+        Class type;
+        if (currentField != null) type = currentField.getType();
+        else if (currentIsArray) type = current.getClass().getComponentType();
+        else if (currentValueClass != null) {
+            completeValue(valueOf(currentValueClass, text, start, length));
+            return;
+        } else if (currentFill != null) type = int.class; // Collection values written by older versions are ints
+        else return;
+
+        if (type == int.class) intValue(PrimitiveCodec.parseInt(text, start, length));
+        else if (type == long.class) longValue(PrimitiveCodec.parseLong(text, start, length, Long.MIN_VALUE, Long.MAX_VALUE));
+        else if (type == double.class) doubleValue(PrimitiveCodec.parseDouble(text, start, length));
+        else if (type == float.class) floatValue(PrimitiveCodec.parseFloat(text, start, length));
+        else if (type == short.class) shortValue(PrimitiveCodec.parseShort(text, start, length));
+        else if (type == char.class) charValue(PrimitiveCodec.parseChar(text, start, length));
+        else if (type == byte.class) byteValue(PrimitiveCodec.parseByte(text, start, length));
+        else if (type == boolean.class) booleanValue(PrimitiveCodec.parseBoolean(text, start, length));
+        else throw new IllegalStateException("Value given for non-primitive " + type.getName());
+    }
+
+    // Typed setters of the current field or next element of the current object; nothing is boxed
+    // except the value of a value object or an inline collection value
+
+    public void intValue(int newValue) {
+        if (currentField != null) currentCodec.setInt(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setInt(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void longValue(long newValue) {
+        if (currentField != null) currentCodec.setLong(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setLong(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void doubleValue(double newValue) {
+        if (currentField != null) currentCodec.setDouble(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setDouble(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void floatValue(float newValue) {
+        if (currentField != null) currentCodec.setFloat(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setFloat(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void shortValue(short newValue) {
+        if (currentField != null) currentCodec.setShort(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setShort(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void charValue(char newValue) {
+        if (currentField != null) currentCodec.setChar(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setChar(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void byteValue(byte newValue) {
+        if (currentField != null) currentCodec.setByte(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setByte(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    public void booleanValue(boolean newValue) {
+        if (currentField != null) currentCodec.setBoolean(current, currentField.getIndex(), newValue);
+        else if (currentIsArray) Array.setBoolean(current, elementIndex++, newValue);
+        else boxedValue(newValue);
+    }
+
+    /**
+     * Sets the value of the current String value object
+     * @param newValue text of the String
+     */
+    public void stringValue(String newValue) {
+        boxedValue(newValue);
+    }
+
+    /**
+     * Sets the next elements of the current object, a primitive array, from packed little-endian bytes
+     * @param bytes buffer holding the packed elements
+     * @param offset position of the first byte
+     * @param length number of bytes; a multiple of the element size
+     */
+    public void packedValues(byte[] bytes, int offset, int length) {
+        if (currentValueClass != null) {
+            completeValue(stringOf(currentValueClass, bytes, offset, length));
+            return;
+        }
+        if (!currentIsArray) return; // A packed string whose object was already created from it
+        int count = length / PackedArrays.elementSize(current.getClass().getComponentType());
+        PackedArrays.unpack(bytes, offset, current, elementIndex, count);
+        elementIndex += count;
+    }
+
+    /**
+     * Sets a reference in the current field or next element of the current object
+     * The reference is patched later if the target has not been instantiated yet
+     * @param id ID of the referenced object
+     * @throws IllegalArgumentException if the ID is negative
+     */
+    public void reference(int id) {
+        if (id < 0) throw new IllegalArgumentException("Invalid object ID " + id);
+        if (currentFill != null) {
+            currentFill.addReference(id);
+            return;
+        }
+        int slot;
+        if (currentIsArray) slot = elementIndex++;
+        else if (currentField != null) slot = currentField.getIndex();
+        else return;
+
+        Object target = id < objects.length ? objects[id] : null;
+        if (target != null)
+            setSlot(current, slot, target);
+        else if (prebuilt)
+            unresolvedCount++; // Never going to arrive
+        else
+            addPatch(id, current, slot);
+    }
+
+    /**
+     * Sets the current field or next element of the current object to null
+     * Only needed by updates, since new objects start out null, but cheap enough to always do
+     */
+    public void nullValue() {
+        if (currentFill != null) currentFill.addReference(0);
+        else if (currentIsArray) Array.set(current, elementIndex++, null);
+        else if (currentField != null) currentCodec.setReference(current, currentField.getIndex(), null);
+    }
+
+    /**
+     * Ends the current object
+     */
+    public void endObject() {
+        select(null, -1);
+    }
+
+    /**
+     * Finishes the graph
+     * References still waiting on an object are left null and dropped, so the next graph
+     * of a session starts with none unresolved. The same map is returned by every graph and
+     * kept up to date as objects are added and removed, so finishing a delta costs what the
+     * delta changed rather than the size of the whole session
+     * @return HashMap containing deserialized objects keyed by ID
+     */
+    public HashMap<Integer, Object> finish() {
+        finishedObjectCount = graphObjectCount;
+        graphObjectCount = 0;
+        unresolvedCount += fillCollections(fills, objects);
+        if (unresolvedCount > 0) {
+            System.out.println(unresolvedCount + " reference(s) to missing objects were left null");
+            Arrays.fill(patchHeads, NO_PATCH);
+            Arrays.fill(patchHolders, 0, patchCount, null);
+            patchCount = 0;
+            unresolvedCount = 0;
+        }
+        return graph;
+    }
+
+    /**
+     * Fills collections and maps once every object they reference is populated
+     * Each is filled after the collections and maps among its elements, since those must be
+     * complete before they are hashed; the order follows the references rather than the IDs,
+     * which say nothing about nesting once ParallelSerializer hands them out in blocks.
+     * The elements are walked depth first with an explicit stack, so deep nesting does not
+     * overflow the thread's stack; a cycle is filled in the order it is first reached
+     * @param fills contents of the collections and maps
+     * @param objects every object of the graph indexed by ID
+     * @return number of references to missing objects
+     */
+    static int fillCollections(List<CollectionFill> fills, Object[] objects) {
+        HashMap<Integer, CollectionFill> fillsByID = new HashMap<>(fills.size() * 4 / 3 + 1);
+        for (CollectionFill fill : fills) fillsByID.put(fill.id, fill);
+
+        int missing = 0;
+        ArrayDeque<CollectionFill> stack = new ArrayDeque<>();
+        for (CollectionFill root : fills) {
+            if (root.visit != NOT_VISITED) continue;
+            root.visit = VISITING;
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                CollectionFill fill = stack.peek();
+                if (fill.nextElement < fill.count) {
+                    CollectionFill nested = fillsByID.get(fill.ids[fill.nextElement++]);
+                    if (nested != null && nested.visit == NOT_VISITED) {
+                        nested.visit = VISITING;
+                        stack.push(nested);
+                    }
+                    continue;
+                }
+                stack.pop();
+                fill.visit = FILLED;
+                missing += fill.fill(objects);
+            }
+        }
+        fills.clear();
+        return missing;
+    }
+
+    /**
+     * Gets the contents of the collections and maps this builder populated; they are not
+     * filled by this builder unless finish is called
+     * @return contents still to be added
+     */
+    List<CollectionFill> getCollectionFills() {
+        return fills;
+    }
+
+    ClassResolver getClassResolver() {
+        return classResolver;
+    }
+
+    /**
+     * Gets the number of objects the last finished graph added or updated
+     * For a delta this counts the delta, not the whole graph finish returns
+     * @return number of objects read by the last graph
+     */
+    public int getFinishedObjectCount() {
+        return finishedObjectCount;
+    }
+
+    /**
+     * Gets the number of references whose target has not been instantiated
+     * @return number of unresolved references
+     */
+    public int getUnresolvedCount() {
+        return unresolvedCount;
+    }
+
+    /**
+     * Checks an ID read from a graph before arrays indexed by ID are grown to hold it
+     * Serializers hand out IDs almost densely; only the unused ends of ParallelSerializer's ID blocks
+     * are skipped, far fewer than MAX_ID_GAP. A larger ID is corrupt or hostile and would allocate
+     * memory out of proportion to the graph
+     * @param id ID read
+     * @param read number of objects and references read so far, including this one
+     */
+    static void checkID(int id, int read) {
+        if (id < 0 || id - read > MAX_ID_GAP) throw new IllegalArgumentException("Invalid object ID " + id);
+    }
+
+    /**
+     * Checks an array length read from a graph before the array is allocated
+     * Readers bound it by the elements the rest of their input can hold, so a corrupt or hostile
+     * length cannot allocate memory out of proportion to the graph
+     * @param length length read
+     * @param available most elements the input can still hold
+     */
+    static void checkArrayLength(int length, long available) {
+        if (length < 0 || length > available) throw new IllegalArgumentException("Invalid array length " + length);
+    }
+
+    /**
+     * Creates an empty instance of a class
+     * Arrays are created at their length, which readers check against their input (see
+     * checkArrayLength); collections and maps are presized for their length up to MAX_PRESIZE
+     * @param classObj class to instantiate; not a value class
+     * @param length number of elements for arrays, collections, and maps; -1 otherwise
+     * @param resolver resolver the class came from, which decides whether a class without a
+     *                 no-arg constructor may be instantiated
+     * @return new instance
+     */
+    static Object instantiate(Class classObj, int length, ClassResolver resolver) {
+        if (length < -1) throw new IllegalArgumentException("Invalid length " + length);
+        // Array
+        if (classObj.isArray())
+            return Array.newInstance(classObj.getComponentType(), Math.max(length, 0));
+        int capacity = Math.min(Math.max(length, 0), MAX_PRESIZE);
+        int hashCapacity = (int) (capacity / 0.75f) + 1; // Holds length entries without rehashing
+        // Collections and maps
+        if (classObj == ArrayList.class) return new ArrayList(capacity);
+        if (classObj == LinkedList.class) return new LinkedList();
+        if (classObj == ArrayDeque.class) return new ArrayDeque(capacity);
+        if (classObj == HashSet.class) return new HashSet(hashCapacity);
+        if (classObj == HashMap.class) return new HashMap(hashCapacity);
+        if (classObj == LinkedHashMap.class) return new LinkedHashMap(hashCapacity);
+        if (classObj == TreeMap.class) return new TreeMap(); // Natural ordering; comparators are not sent
+        if (ObjectKind.of(classObj) == ObjectKind.VALUE)
+            throw new IllegalStateException(classObj.getName() + " is created from its value");
+        // Other
+        return ClassDescriptor.forClass(classObj).newInstance(resolver.isAllowedWithoutConstructor(classObj));
+    }
+
+    /**
+     * Creates a value object from its text
+     * @param valueClass boxed primitive class or String
+     * @param text buffer holding the value as written in the document
+     * @param start position of the first char
+     * @param length number of chars
+     * @return boxed value or String
+     */
+    static Object valueOf(Class valueClass, char[] text, int start, int length) {
+        Class type = ObjectKind.valueType(valueClass);
+        if (type == String.class) return new String(text, start, length);
+        if (type == int.class) return PrimitiveCodec.parseInt(text, start, length);
+        if (type == long.class) return PrimitiveCodec.parseLong(text, start, length, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (type == double.class) return PrimitiveCodec.parseDouble(text, start, length);
+        if (type == float.class) return PrimitiveCodec.parseFloat(text, start, length);
+        if (type == short.class) return PrimitiveCodec.parseShort(text, start, length);
+        if (type == char.class) return PrimitiveCodec.parseChar(text, start, length);
+        if (type == byte.class) return PrimitiveCodec.parseByte(text, start, length);
+        return PrimitiveCodec.parseBoolean(text, start, length);
+    }
+
+    /**
+     * Creates a String from its packed chars, as written for strings XML cannot hold as text
+     * @param valueClass class of the value object; only String is ever packed
+     * @param bytes buffer holding the packed chars
+     * @param offset position of the first byte
+     * @param length number of bytes
+     * @return the string
+     */
+    static String stringOf(Class valueClass, byte[] bytes, int offset, int length) {
+        if (valueClass != String.class) throw new IllegalStateException("Packed value given for " + valueClass.getName());
+        char[] chars = new char[length / 2];
+        PackedArrays.unpack(bytes, offset, chars, 0, chars.length);
+        return new String(chars);
+    }
+
+    private void select(Object obj, int length) {
+        current = obj;
+        currentDescriptor = null;
+        currentCodec = null;
+        currentField = null;
+        currentIsArray = false;
+        currentFill = null;
+        currentValueClass = null;
+        elementIndex = 0;
+        if (obj == null) return;
+
+        ObjectKind kind = ObjectKind.of(obj.getClass());
+        switch (kind) {
+            case ARRAY:
+                currentIsArray = true;
+                break;
+            case COLLECTION:
+            case MAP:
+                if (kind == ObjectKind.MAP && length > Integer.MAX_VALUE / 2)
+                    throw new IllegalArgumentException("Invalid map length " + length);
+                currentFill = new CollectionFill(currentID, obj, kind == ObjectKind.MAP ? length * 2 : length);
+                fills.add(currentFill);
+                break;
+            case VALUE:
+                break; // Already complete
+            default:
+                currentDescriptor = ClassDescriptor.forClass(obj.getClass());
+                currentCodec = currentDescriptor.getCodec();
+                break;
+        }
+    }
+
+    /**
+     * Sets a value that has no typed setter of its own: the value of a value object, or an
+     * inline element of a collection; anything else (such as a value for an unknown field) is dropped
+     */
+    private void boxedValue(Object value) {
+        if (currentValueClass != null) completeValue(value);
+        else if (currentFill != null) currentFill.addValue(value);
+    }
+
+    private void completeValue(Object value) {
+        objects[currentID] = value;
+        graph.put(currentID, value);
+        resolvePatches(currentID, value);
+        currentValueClass = null;
+    }
+
+    private void setSlot(Object holder, int slot, Object target) {
+        if (holder.getClass().isArray())
+            Array.set(holder, slot, target);
+        else
+            ClassDescriptor.forClass(holder.getClass()).getCodec().setReference(holder, slot, target);
+    }
+
+    private void addPatch(int targetID, Object holder, int slot) {
+        ensureCapacity(targetID);
+        if (patchCount == patchHolders.length) {
+            int newLength = patchCount * 2;
+            patchHolders = Arrays.copyOf(patchHolders, newLength);
+            patchSlots = Arrays.copyOf(patchSlots, newLength);
+            patchNext = Arrays.copyOf(patchNext, newLength);
+        }
+        int patch = patchCount++;
+        patchHolders[patch] = holder;
+        patchSlots[patch] = slot;
+        patchNext[patch] = patchHeads[targetID];
+        patchHeads[targetID] = patch;
+        unresolvedCount++;
+    }
+
+    private void resolvePatches(int id, Object target) {
+        for (int patch = patchHeads[id]; patch != NO_PATCH; patch = patchNext[patch]) {
+            setSlot(patchHolders[patch], patchSlots[patch], target);
+            patchHolders[patch] = null;
+            unresolvedCount--;
+        }
+        patchHeads[id] = NO_PATCH;
+        if (unresolvedCount == 0) patchCount = 0; // Reuse the patch arrays once nothing is waiting
+    }
+
+    private void ensureCapacity(int id) {
+        checkID(id, ++idsRead);
+        if (id < objects.length) return;
+
+        int newLength = Math.max(objects.length * 2, id + 1);
+        objects = Arrays.copyOf(objects, newLength);
+        int oldLength = patchHeads.length;
+        patchHeads = Arrays.copyOf(patchHeads, newLength);
+        Arrays.fill(patchHeads, oldLength, newLength, NO_PATCH);
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+
+/**
+ * Long-lived sending connection carrying a stream of serialized object graphs
+ * Each call to send serializes one graph into a reusable buffer and writes it as one frame,
+ * compressed if the receiver accepted compression when the connection was opened. If the
+ * receiver also accepted deltas, each graph after the first only carries what changed
+ *
+ * @author Sukhjot Sekhon
+ */
+public class GraphConnection implements Closeable {
+    private static final int ANSWER_TIMEOUT = 10_000; // Milliseconds to wait for the answer to the header
+
+    private final Socket sock;
+    private final DataOutputStream outStream;
+    private final Serializer serializer; // Null when graphs are sent as deltas
+    private final DeltaSerializer deltaSerializer;
+    private final FrameBuffer graph = new FrameBuffer();
+    private final FrameBuffer frames = new FrameBuffer();
+    private final FrameEncoder encoder;
+    private final GraphFormat format;
+    private final ConnectionEvent event; // Guarded by this
+
+    /**
+     * Connects to a receiver without compression
+     * @param host host of the receiver
+     * @param port port of the receiver
+     * @param format format graphs are serialized in
+     */
+    public GraphConnection(String host, int port, GraphFormat format) throws IOException {
+        this(host, port, format, false);
+    }
+
+    /**
+     * Connects to a receiver and negotiates the connection options
+     * @param host host of the receiver
+     * @param port port of the receiver
+     * @param format format graphs are serialized in
+     * @param compress true to offer compressed frames; used only if the receiver accepts
+     */
+    public GraphConnection(String host, int port, GraphFormat format, boolean compress) throws IOException {
+        this(host, port, format, compress, false);
+    }
+
+    /**
+     * Connects to a receiver and negotiates the connection options
+     * @param host host of the receiver
+     * @param port port of the receiver
+     * @param format format graphs are serialized in
+     * @param compress true to offer compressed frames; used only if the receiver accepts
+     * @param delta true to offer sending only what changed since the last graph; used only if the receiver accepts
+     */
+    public GraphConnection(String host, int port, GraphFormat format, boolean compress, boolean delta) throws IOException {
+        this.format = format;
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true); // Frames are written whole, so don't wait to coalesce them
+        event = new ConnectionEvent(ConnectionEvent.SEND, sock.getRemoteSocketAddress());
+        outStream = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        int offered = (compress ? FrameProtocol.OPTION_DEFLATE : 0) | (delta ? FrameProtocol.OPTION_DELTA : 0);
+        FrameProtocol.writeHeader(outStream, offered);
+        outStream.flush();
+
+        int accepted;
+        sock.setSoTimeout(ANSWER_TIMEOUT);
+        try {
+            accepted = sock.getInputStream().read();
+        } catch (SocketTimeoutException e) {
+            sock.close();
+            throw new IOException("Receiver did not answer the connection header", e);
+        }
+        sock.setSoTimeout(0);
+        if (accepted < 0) {
+            sock.close();
+            throw new IOException("Receiver closed the connection during the header");
+        }
+        encoder = new FrameEncoder((accepted & FrameProtocol.OPTION_DEFLATE) != 0);
+        boolean deltas = (accepted & FrameProtocol.OPTION_DELTA) != 0;
+        serializer = deltas ? null : new Serializer();
+        deltaSerializer = deltas ? new DeltaSerializer() : null;
+    }
+
+    /**
+     * Serializes objects as one graph and sends it as one frame
+     * @param objs root objects of the graph
+     */
+    public synchronized void send(Collection<?> objs) throws IOException {
+        graph.reset();
+        GraphWriter writer = encoder.track(format.newWriter(graph));
+        if (deltaSerializer != null) deltaSerializer.serialize(objs, writer);
+        else serializer.serialize(objs, writer);
+        frames.reset();
+        int frameCount = encoder.encode(graph, frames);
+        frames.writeTo(outStream);
+        outStream.flush();
+        event.count(frameCount, frames.size());
+    }
+
+    /**
+     * Sets the smallest graph that is compressed
+     * @param threshold size in bytes
+     */
+    public synchronized void setCompressionThreshold(int threshold) {
+        encoder.setThreshold(threshold);
+    }
+
+    /**
+     * Closes the connection; the receiver sees the end of the frame stream
+     */
+    public synchronized void close() throws IOException {
+        try {
+            outStream.close();
+        } finally {
+            sock.close();
+            event.finish();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one graph serialized or deserialized
+ * Costs next to nothing unless a recording has the event enabled
+ *
+ * @author Sukhjot Sekhon
+ */
+@Name("objectsharing.Graph")
+@Label("Object Graph")
+@Category("Object Sharing")
+@Description("Serialization or deserialization of one object graph")
+public class GraphEvent extends Event {
+    static final String SERIALIZE = "serialize";
+    static final String DESERIALIZE = "deserialize";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Objects")
+    int objects;
+
+    /**
+     * Starts timing an operation
+     * @param operation SERIALIZE or DESERIALIZE
+     */
+    GraphEvent(String operation) {
+        this.operation = operation;
+        begin();
+    }
+
+    /**
+     * Ends the operation and commits the event if it is being recorded
+     * @param objects number of objects written or read
+     */
+    void finish(int objects) {
+        end();
+        if (shouldCommit()) {
+            this.objects = objects;
+            commit();
+        }
+    }
+}
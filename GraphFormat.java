@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire formats a serialized object graph can be written in
+ * Binary graphs start with a magic header; anything else is read as XML
+ *
+ * @author Sukhjot Sekhon
+ */
+public enum GraphFormat {
+    XML,
+    BINARY;
+
+    static final byte[] BINARY_MAGIC = {'R', 'S', 'G', 'B'};
+    static final byte BINARY_VERSION = 3; // Version 2 added collections, maps, and values; 3 added deltas
+
+    /**
+     * Creates a writer producing this format
+     * @param out stream to write to; it is flushed but not closed
+     * @return writer for the format, which can also join fragments
+     */
+    public StreamingGraphWriter newWriter(OutputStream out) throws IOException {
+        if (this == BINARY) return new BinaryGraphWriter(out);
+        return new XmlGraphWriter(out);
+    }
+
+    /**
+     * Creates a writer producing one fragment of a graph in this format
+     * Fragments have no header or end of their own and are joined with StreamingGraphWriter.writeFragment
+     * @param out stream to write to; it is flushed but not closed
+     * @return fragment writer for the format
+     */
+    public GraphWriter newFragmentWriter(OutputStream out) throws IOException {
+        if (this == BINARY) return new BinaryGraphWriter(out, true);
+        return new XmlGraphWriter(out, true);
+    }
+
+    /**
+     * Selects the format of a graph from its first bytes without consuming them
+     * @param in stream positioned at the start of a graph; must support mark/reset
+     * @return format of the graph
+     */
+    public static GraphFormat detect(InputStream in) throws IOException {
+        if (!in.markSupported()) throw new IllegalArgumentException("Stream must support mark/reset");
+
+        in.mark(BINARY_MAGIC.length);
+        try {
+            for (byte magicByte : BINARY_MAGIC) {
+                if (in.read() != magicByte) return XML;
+            }
+            return BINARY;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Selects the format of a graph held in a buffer without moving it
+     * @param graph buffer positioned at the start of a graph
+     * @return format of the graph
+     */
+    public static GraphFormat detect(ByteBuffer graph) {
+        if (graph.remaining() < BINARY_MAGIC.length) return XML;
+        for (int i = 0; i < BINARY_MAGIC.length; i++) {
+            if (graph.get(graph.position() + i) != BINARY_MAGIC[i]) return XML;
+        }
+        return BINARY;
+    }
+}
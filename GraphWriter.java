@@ -0,0 +1,72 @@
+import java.io.IOException;
+
+/**
+ * Receives the elements of a serialized object graph in the order the Serializer walks it
+ * Implementations decide the output format (JDOM document, streamed XML, ...)
+ *
+ * Objects are written one after another in ID order; fields, values, and references
+ * (see FieldWriter) are only written between beginObject and endObject
+ *
+ * A graph written by several workers is made of fragments: each worker writes its objects
+ * with a fragment writer of the format (see GraphFormat.newFragmentWriter), and the
+ * fragments are then copied one after another into the graph by a StreamingGraphWriter
+ *
+ * A delta written by a DeltaSerializer also updates and removes objects written by the
+ * earlier graphs of its session
+ *
+ * @author Sukhjot Sekhon
+ */
+public interface GraphWriter extends FieldWriter {
+
+    /**
+     * Starts a graph before any object is written
+     */
+    void beginGraph() throws IOException;
+
+    /**
+     * Starts an object
+     * @param id unique ID of the object
+     * @param objClass class of the object
+     * @param length number of elements for arrays and collections; -1 otherwise
+     */
+    void beginObject(int id, Class objClass, int length) throws IOException;
+
+    /**
+     * Starts an update of an object written by an earlier graph of the same delta session
+     * Plain objects are given only their changed fields; arrays, collections, and maps are
+     * given every element again. Ended by endObject
+     * @param id ID of the object
+     * @param objClass class of the object
+     * @param length number of elements for arrays and collections; -1 otherwise
+     */
+    void beginUpdate(int id, Class objClass, int length) throws IOException;
+
+    /**
+     * Removes an object written by an earlier graph of the same delta session
+     * Only called between objects
+     * @param id ID of the object no longer in the graph
+     */
+    void writeRemoved(int id) throws IOException;
+
+    /**
+     * Writes a primitive value, or the text of a String value object
+     * @param value boxed primitive value or String
+     */
+    void writeValue(Object value) throws IOException;
+
+    /**
+     * Writes every element of the current object, a primitive array, as one packed block
+     * @param array primitive array being written
+     */
+    void writePackedArray(Object array) throws IOException;
+
+    /**
+     * Ends the current object
+     */
+    void endObject() throws IOException;
+
+    /**
+     * Ends the graph and flushes any buffered output
+     */
+    void endGraph() throws IOException;
+}
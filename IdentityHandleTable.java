@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+/**
+ * Identity-keyed handle table mapping objects to int handles
+ * Open addressing with linear probing over parallel key/value arrays, so lookups are
+ * constant time, values are never boxed, and memory is two arrays sized to a power of two
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class IdentityHandleTable {
+    public static final int NOT_FOUND = -1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private Object[] keys;
+    private int[] values;
+    private int size;
+    private int resizeThreshold; // Table is kept at most half full
+
+    public IdentityHandleTable() {
+        this(DEFAULT_CAPACITY / 2);
+    }
+
+    /**
+     * Creates a table able to hold the expected number of objects without resizing
+     * @param expectedSize number of objects expected
+     */
+    public IdentityHandleTable(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity / 2 < expectedSize && capacity < MAX_CAPACITY) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Gets the handle of an object
+     * @param obj object to look up (compared by identity)
+     * @return handle of the object or NOT_FOUND
+     */
+    public int get(Object obj) {
+        Object[] tab = keys;
+        int mask = tab.length - 1;
+        for (int i = indexFor(obj, mask); ; i = (i + 1) & mask) {
+            Object key = tab[i];
+            if (key == obj) return values[i];
+            if (key == null) return NOT_FOUND;
+        }
+    }
+
+    /**
+     * Associates a handle with an object unless it already has one
+     * @param obj object to add (must not be null)
+     * @param handle handle to associate with the object
+     * @return existing handle of the object or NOT_FOUND if the handle was added
+     */
+    public int putIfAbsent(Object obj, int handle) {
+        if (obj == null) throw new NullPointerException("Cannot add a null object");
+        Object[] tab = keys;
+        int mask = tab.length - 1;
+        int i = indexFor(obj, mask);
+        for (; ; i = (i + 1) & mask) {
+            Object key = tab[i];
+            if (key == obj) return values[i];
+            if (key == null) break;
+        }
+        tab[i] = obj;
+        values[i] = handle;
+        if (++size > resizeThreshold) resize();
+        return NOT_FOUND;
+    }
+
+    /**
+     * Associates a handle with an object, replacing any existing handle
+     * @param obj object to add (must not be null)
+     * @param handle handle to associate with the object
+     */
+    public void put(Object obj, int handle) {
+        if (putIfAbsent(obj, handle) != NOT_FOUND) {
+            int mask = keys.length - 1;
+            int i = indexFor(obj, mask);
+            while (keys[i] != obj) i = (i + 1) & mask;
+            values[i] = handle;
+        }
+    }
+
+    /**
+     * Removes an object
+     * @param obj object to remove (compared by identity)
+     * @return handle the object had or NOT_FOUND
+     */
+    public int remove(Object obj) {
+        Object[] tab = keys;
+        int mask = tab.length - 1;
+        int i = indexFor(obj, mask);
+        for (; ; i = (i + 1) & mask) {
+            Object key = tab[i];
+            if (key == obj) break;
+            if (key == null) return NOT_FOUND;
+        }
+        int handle = values[i];
+
+        // Moves later keys of the probe run back into the gap, so no lookup stops early at an empty slot
+        int gap = i;
+        for (int j = (i + 1) & mask; tab[j] != null; j = (j + 1) & mask) {
+            int home = indexFor(tab[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                tab[gap] = tab[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        tab[gap] = null;
+        size--;
+        return handle;
+    }
+
+    /**
+     * Removes all objects while keeping the allocated capacity
+     */
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        if (oldKeys.length == MAX_CAPACITY)
+            throw new IllegalStateException("IdentityHandleTable is full");
+        allocate(oldKeys.length << 1);
+
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            Object key = oldKeys[j];
+            if (key == null) continue;
+            int i = indexFor(key, mask);
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = oldValues[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new int[capacity];
+        resizeThreshold = capacity / 2;
+    }
+
+    private static int indexFor(Object obj, int mask) {
+        int h = System.identityHashCode(obj) * 0x9E3779B9; // Fibonacci hashing spreads nearby identity hashes
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
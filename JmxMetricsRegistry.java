@@ -0,0 +1,122 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics registry publishing every counter and timer as an MXBean on the platform MBean server
+ * Counters are named ObjectSharing:type=Counter,name=<name> and timers
+ * ObjectSharing:type=Timer,name=<name>, so any JMX client (jconsole, VisualVM) can read them
+ *
+ * @author Sukhjot Sekhon
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+    public static final String DOMAIN = "ObjectSharing";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    public interface CounterMXBean {
+        String getDescription();
+
+        long getCount();
+    }
+
+    public interface TimerMXBean {
+        String getDescription();
+
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+    }
+
+    private static final class JmxCounter implements Counter, CounterMXBean {
+        private final String description;
+        private final LongAdder count = new LongAdder();
+
+        JmxCounter(String description) {
+            this.description = description;
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    private static final class JmxTimer implements Timer, TimerMXBean {
+        private final String description;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        JmxTimer(String description) {
+            this.description = description;
+        }
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            if (nanos > maxNanos.get()) maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getTotalMillis() {
+            return totalNanos.sum() / 1e6;
+        }
+
+        public double getMeanMillis() {
+            long timed = count.sum();
+            return timed == 0 ? 0 : totalNanos.sum() / 1e6 / timed;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    public Counter counter(String name, String description) {
+        JmxCounter counter = new JmxCounter(description);
+        register("Counter", name, counter);
+        return counter;
+    }
+
+    public Timer timer(String name, String description) {
+        JmxTimer timer = new JmxTimer(description);
+        register("Timer", name, timer);
+        return timer;
+    }
+
+    /**
+     * Registers a metric, replacing one of the same name (left by another class loader)
+     * A metric that cannot be registered still records; it just cannot be read over JMX
+     */
+    private void register(String type, String name, Object metric) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(metric, objectName);
+        } catch (JMException e) {
+            System.out.println("Cannot publish metric " + name + " over JMX: " + e);
+        }
+    }
+}
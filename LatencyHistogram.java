@@ -0,0 +1,154 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a fixed relative precision over the whole range of long values
+ * Values below the sub-bucket count are counted exactly; above it each power of two is split
+ * into half as many equal sub-buckets, so every bucket is at most 2 / subBuckets of its value
+ * wide. Recording is one array increment without locks or allocation, so any number of threads
+ * can record at once
+ *
+ * @author Sukhjot Sekhon
+ */
+public class LatencyHistogram {
+    private final int precisionBits; // Log2 of the sub-bucket count
+    private final int subBuckets;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates a histogram whose buckets are at most 0.2% of their value wide
+     */
+    public LatencyHistogram() {
+        this(10);
+    }
+
+    /**
+     * @param precisionBits log2 of the number of sub-buckets, from 1 to 20; buckets are at most
+     *                      2^(1 - precisionBits) of their value wide
+     */
+    public LatencyHistogram(int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 20) throw new IllegalArgumentException("Invalid precision " + precisionBits);
+        this.precisionBits = precisionBits;
+        subBuckets = 1 << precisionBits;
+        counts = new AtomicLongArray(indexOf(Long.MAX_VALUE) + 1);
+    }
+
+    /**
+     * Records one value
+     * @param value value to record, such as a latency in nanoseconds; negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        min.accumulateAndGet(value, Math::min);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Adds every value recorded by another histogram of the same precision
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        if (other.precisionBits != precisionBits) throw new IllegalArgumentException("Histograms differ in precision");
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        min.accumulateAndGet(other.min.get(), Math::min);
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Forgets every recorded value
+     * Values recorded while the histogram is being reset may be partly kept
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        totalCount.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * Gets the value below which a percentage of the recorded values fall
+     * @param percentile percentage from 0 to 100
+     * @return highest value of the bucket holding the percentile, at most the largest value
+     *         recorded; 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValueAt(i), getMax());
+        }
+        return getMax();
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMin() {
+        return totalCount.get() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = totalCount.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * Prints the usual percentiles
+     * @param out stream to print to
+     * @param unit name of the unit printed
+     * @param scale number of recorded units in one printed unit, such as 1000 to print
+     *              nanoseconds as microseconds
+     */
+    public void print(PrintStream out, String unit, double scale) {
+        out.printf("Latency (%s): count %d, min %.1f, mean %.1f, max %.1f%n",
+                unit, getTotalCount(), getMin() / scale, getMean() / scale, getMax() / scale);
+        for (double percentile : new double[] {50, 90, 99, 99.9, 99.99})
+            out.printf("    p%-6s %12.1f%n", percentile, getValueAtPercentile(percentile) / scale);
+    }
+
+    /**
+     * Gets the bucket of a value
+     * Values below subBuckets have a bucket each; the values from 2^m to 2^(m+1) share
+     * subBuckets / 2 buckets of width 2^(m + 1 - precisionBits)
+     */
+    private int indexOf(long value) {
+        if (value < subBuckets) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); // At least precisionBits
+        int shift = magnitude + 1 - precisionBits;
+        return subBuckets + (magnitude - precisionBits) * (subBuckets / 2) + (int) (value >>> shift) - subBuckets / 2;
+    }
+
+    /**
+     * Gets the highest value counted in a bucket
+     */
+    private long highestValueAt(int index) {
+        if (index < subBuckets) return index;
+        int magnitude = (index - subBuckets) / (subBuckets / 2) + precisionBits;
+        int shift = magnitude + 1 - precisionBits;
+        long sub = (index - subBuckets) % (subBuckets / 2) + subBuckets / 2;
+        long lowest = sub << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
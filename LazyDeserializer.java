@@ -0,0 +1,68 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.xml.stream.XMLStreamException;
+import org.jdom2.*;
+import org.jdom2.input.StAXStreamBuilder;
+
+/**
+ * Deserializes a graph into a LazyGraph, which only builds the objects that are used
+ * Binary graphs are read into memory, or left in their buffer, and indexed in one pass; XML is
+ * parsed into a document and indexed by element. Only whole graphs can be read lazily, not the deltas of a session
+ *
+ * @author Sukhjot Sekhon
+ */
+public class LazyDeserializer extends Deserializer {
+
+    /**
+     * Indexes a document without building any object
+     *
+     * @param document Document to deserialize
+     * @return LazyGraph building objects as they are read
+     */
+    @Override
+    public Object deserialize(Document document) {
+        GraphEvent event = new GraphEvent(GraphEvent.DESERIALIZE);
+        long start = Metrics.startTime();
+        return recordGraph(LazyGraph.read(document, getClassResolver(), this), event, start);
+    }
+
+    /**
+     * Reads a graph from a stream and indexes it without building any object
+     *
+     * @param in stream containing the XML document or binary graph
+     * @return LazyGraph building objects as they are read
+     */
+    @Override
+    public Object deserialize(InputStream in) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        if (GraphFormat.detect(in) == GraphFormat.BINARY) {
+            GraphEvent event = new GraphEvent(GraphEvent.DESERIALIZE);
+            long start = Metrics.startTime();
+            FrameBuffer graph = new FrameBuffer(); // Kept by the LazyGraph, which reads objects from it
+            in.transferTo(graph);
+            return recordGraph(LazyGraph.read(graph.array(), 0, graph.size(), getClassResolver()), event, start);
+        }
+
+        try {
+            return deserialize(new StAXStreamBuilder().build(INPUT_FACTORY.createXMLStreamReader(in)));
+        } catch (XMLStreamException | JDOMException e) { throw new IOException(e); }
+    }
+
+    /**
+     * Indexes a graph held in a buffer without building any object
+     * Binary graphs are indexed in place and objects are read from the buffer as they are built,
+     * so the buffer must stay valid and unchanged; XML is parsed into a document
+     *
+     * @param graph buffer holding the XML document or binary graph from its position to its limit
+     * @return LazyGraph building objects as they are read
+     */
+    @Override
+    public Object deserialize(ByteBuffer graph) throws IOException {
+        if (GraphFormat.detect(graph) != GraphFormat.BINARY) return super.deserialize(graph);
+        GraphEvent event = new GraphEvent(GraphEvent.DESERIALIZE);
+        long start = Metrics.startTime();
+        return recordGraph(LazyGraph.read(graph.duplicate(), getClassResolver()), event, start);
+    }
+}
@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import org.jdom2.*;
+
+/**
+ * Map from ID to object over a received graph that only builds the objects that are used
+ * The graph is indexed once when the view is created, noting the class, length, and position
+ * of every object. Getting an object instantiates it and every object it reaches that was
+ * not built yet, populates them, then fills the collections and maps among them, so each
+ * object returned is complete. Objects that are never reached from an object that was
+ * asked for are never instantiated
+ *
+ * Keys can be listed and looked up without building anything; values are built as they are read
+ *
+ * @author Sukhjot Sekhon
+ */
+public class LazyGraph extends AbstractMap<Integer, Object> {
+    private Class[] classes = new Class[64]; // Class of each ID; null if the graph has no such object
+    private int[] lengths = new int[64]; // Length of arrays, collections, and maps
+    private int size;
+    private final Source source;
+    private final ClassResolver resolver;
+
+    private Object[] objects; // Objects built so far, indexed by ID
+    private int builtCount;
+    private FaultingBuilder builder;
+    private int[] unpopulated = new int[16]; // Objects instantiated but not yet populated
+    private int unpopulatedCount;
+
+    /**
+     * Reads the contents of single objects of the graph
+     */
+    private interface Source {
+        /**
+         * Creates a value object
+         */
+        Object value(int id, Class valueClass) throws IOException;
+
+        /**
+         * Sets the fields or elements of the current object of the builder, then ends it
+         */
+        void populate(int id, GraphBuilder builder) throws IOException;
+    }
+
+    private LazyGraph(Source source, ClassResolver resolver) {
+        this.source = source;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Indexes a binary graph held in memory
+     * The bytes are read again as objects are built, so they must not change afterwards
+     *
+     * @param bytes buffer holding the graph
+     * @param offset position of the magic header
+     * @param length number of bytes of the graph
+     * @param resolver resolves the classes of the objects
+     * @return view building the objects of the graph on demand
+     */
+    public static LazyGraph read(byte[] bytes, int offset, int length, ClassResolver resolver) throws IOException {
+        return read(new BinaryGraphReader(bytes, offset, length), resolver);
+    }
+
+    /**
+     * Indexes a binary graph held in a buffer, such as a memory-mapped file, without copying it
+     * Objects are read from the buffer as they are built, so it must stay valid and unchanged
+     *
+     * @param graph buffer holding the graph from its position to its limit
+     * @param resolver resolves the classes of the objects
+     * @return view building the objects of the graph on demand
+     */
+    public static LazyGraph read(ByteBuffer graph, ClassResolver resolver) throws IOException {
+        return read(new BinaryGraphReader(graph), resolver);
+    }
+
+    private static LazyGraph read(BinaryGraphReader reader, ClassResolver resolver) throws IOException {
+        BinarySource source = new BinarySource(reader);
+        LazyGraph graph = new LazyGraph(source, resolver);
+        reader.index(resolver, (id, entry, objLength, position) -> {
+            graph.add(id, entry.type, objLength);
+            source.add(id, entry, objLength, position);
+        });
+        graph.finishIndex();
+        return graph;
+    }
+
+    /**
+     * Indexes an XML document
+     *
+     * @param document Document of a whole graph
+     * @param resolver resolves the classes of the objects
+     * @param deserializer deserializer setting the contents of object elements
+     * @return view building the objects of the graph on demand
+     */
+    static LazyGraph read(Document document, ClassResolver resolver, Deserializer deserializer) {
+        XmlSource source = new XmlSource(deserializer);
+        LazyGraph graph = new LazyGraph(source, resolver);
+        for (Element elem : document.getRootElement().getChildren()) {
+            if (!elem.getName().equals("object"))
+                throw new IllegalArgumentException("A delta cannot be indexed without the graph it applies to");
+            int id = Integer.parseInt(elem.getAttributeValue("id"));
+            String length = elem.getAttributeValue("length");
+            Class objClass = resolver.resolve(elem.getAttributeValue("class"));
+            int objLength = length == null ? -1 : Integer.parseInt(length);
+            Deserializer.checkArrayLength(objClass, objLength, elem);
+            graph.add(id, objClass, objLength);
+            source.add(id, elem);
+        }
+        graph.finishIndex();
+        return graph;
+    }
+
+    /**
+     * Gets an object, building it and every object it reaches that was not built yet
+     *
+     * @param key ID of the object
+     * @return object with the ID, or null if the graph has none
+     */
+    @Override
+    public synchronized Object get(Object key) {
+        if (!(key instanceof Integer)) return null;
+        int id = (Integer) key;
+        if (!has(id)) return null;
+        if (objects[id] == null) {
+            try {
+                build(id);
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        return objects[id];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Integer && has((Integer) key);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether an object has been built, without building it
+     * @param id ID of the object
+     * @return true if the object is built
+     */
+    public synchronized boolean isBuilt(int id) {
+        return has(id) && objects[id] != null;
+    }
+
+    /**
+     * Gets the number of objects built so far
+     * @return number of objects built
+     */
+    public synchronized int getBuiltCount() {
+        return builtCount;
+    }
+
+    /**
+     * Lists the entries in ID order; each value is built when it is read
+     */
+    @Override
+    public Set<Map.Entry<Integer, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, Object>>() {
+            public Iterator<Map.Entry<Integer, Object>> iterator() {
+                return new Iterator<Map.Entry<Integer, Object>>() {
+                    private int next = nextID(0);
+
+                    public boolean hasNext() {
+                        return next < classes.length;
+                    }
+
+                    public Map.Entry<Integer, Object> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        int id = next;
+                        next = nextID(id);
+                        return new Entry(id);
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Entry whose value is built when it is first read
+     */
+    private final class Entry implements Map.Entry<Integer, Object> {
+        private final int id;
+
+        Entry(int id) {
+            this.id = id;
+        }
+
+        public Integer getKey() {
+            return id;
+        }
+
+        public Object getValue() {
+            return get(id);
+        }
+
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return getKey().equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return id ^ Objects.hashCode(getValue());
+        }
+    }
+
+    private int nextID(int id) {
+        do id++; while (id < classes.length && classes[id] == null);
+        return id;
+    }
+
+    private boolean has(int id) {
+        return id > 0 && id < classes.length && classes[id] != null;
+    }
+
+    private void add(int id, Class objClass, int length) {
+        if (id == 0) throw new IllegalArgumentException("Invalid object ID " + id);
+        GraphBuilder.checkID(id, size + 1);
+        if (id >= classes.length) {
+            int newLength = Math.max(classes.length * 2, id + 1);
+            classes = Arrays.copyOf(classes, newLength);
+            lengths = Arrays.copyOf(lengths, newLength);
+        }
+        if (classes[id] == null) size++;
+        classes[id] = objClass;
+        lengths[id] = length;
+    }
+
+    private void finishIndex() {
+        objects = new Object[classes.length];
+        builder = new FaultingBuilder(objects);
+    }
+
+    /**
+     * Builds an object and everything it reaches that was not built yet
+     * Objects are instantiated when first referenced and populated from a work list rather
+     * than recursively, so long chains of references do not overflow the stack
+     */
+    private void build(int id) throws IOException {
+        int unresolved = builder.getUnresolvedCount();
+        instantiate(id);
+        while (unpopulatedCount > 0) {
+            int next = unpopulated[--unpopulatedCount];
+            builder.populate(next);
+            source.populate(next, builder);
+        }
+        unresolved = builder.getUnresolvedCount() - unresolved
+                + GraphBuilder.fillCollections(builder.getCollectionFills(), objects);
+        if (unresolved > 0)
+            System.out.println(unresolved + " reference(s) to missing objects were left null");
+    }
+
+    /**
+     * Instantiates an object unless it is built or missing, queueing it to be populated
+     * Value objects are complete once created
+     */
+    private void instantiate(int id) throws IOException {
+        if (!has(id) || objects[id] != null) return;
+        Class objClass = classes[id];
+        if (ObjectKind.of(objClass) == ObjectKind.VALUE) {
+            objects[id] = source.value(id, objClass);
+        } else {
+            objects[id] = GraphBuilder.instantiate(objClass, lengths[id], resolver);
+            if (unpopulatedCount == unpopulated.length) unpopulated = Arrays.copyOf(unpopulated, unpopulatedCount * 2);
+            unpopulated[unpopulatedCount++] = id;
+        }
+        builtCount++;
+    }
+
+    /**
+     * Builder populating instantiated objects that instantiates every object referenced first,
+     * so each reference finds its target
+     */
+    private final class FaultingBuilder extends GraphBuilder {
+        FaultingBuilder(Object[] objects) {
+            super(objects);
+        }
+
+        @Override
+        public void reference(int id) {
+            try {
+                LazyGraph.this.instantiate(id);
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+            super.reference(id);
+        }
+    }
+
+    /**
+     * Objects of a binary graph, read from their indexed position
+     */
+    private static final class BinarySource implements Source {
+        private final BinaryGraphReader reader;
+        private BinaryGraphReader.ClassEntry[] entries = new BinaryGraphReader.ClassEntry[64];
+        private int[] positions = new int[64];
+        private int[] lengths = new int[64];
+
+        BinarySource(BinaryGraphReader reader) {
+            this.reader = reader;
+        }
+
+        void add(int id, BinaryGraphReader.ClassEntry entry, int length, int position) {
+            if (id >= entries.length) {
+                int newLength = Math.max(entries.length * 2, id + 1);
+                entries = Arrays.copyOf(entries, newLength);
+                positions = Arrays.copyOf(positions, newLength);
+                lengths = Arrays.copyOf(lengths, newLength);
+            }
+            entries[id] = entry;
+            positions[id] = position;
+            lengths[id] = length;
+        }
+
+        public Object value(int id, Class valueClass) throws IOException {
+            return reader.readValueObject(entries[id], positions[id]);
+        }
+
+        public void populate(int id, GraphBuilder builder) throws IOException {
+            reader.populate(entries[id], lengths[id], positions[id], builder);
+            builder.endObject();
+        }
+    }
+
+    /**
+     * Objects of an XML document, read from their object element
+     */
+    private static final class XmlSource implements Source {
+        private final Deserializer deserializer;
+        private Element[] elements = new Element[64];
+
+        XmlSource(Deserializer deserializer) {
+            this.deserializer = deserializer;
+        }
+
+        void add(int id, Element elem) {
+            if (id >= elements.length) elements = Arrays.copyOf(elements, Math.max(elements.length * 2, id + 1));
+            elements[id] = elem;
+        }
+
+        public Object value(int id, Class valueClass) {
+            return Deserializer.valueOf(valueClass, elements[id]);
+        }
+
+        public void populate(int id, GraphBuilder builder) {
+            deserializer.setContent(builder, elements[id]);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Load generator driving graphs through serialize, send, receive, and deserialize over loopback
+ * Each of a number of connections sends graphs on its own thread at a share of the target
+ * rate; the receiver records the latency of every graph from the time it was due to be sent
+ * until it was deserialized, so a sender falling behind schedule counts against latency
+ * instead of hiding it
+ *
+ * Runs the sender and receiver in one JVM by default, or in two processes:
+ *      - java LoadHarness receive
+ *      - java LoadHarness send [host]
+ * java LoadHarness connect instead checks, in one JVM, that a graph sent over a new connection
+ * arrives even when it is read together with the connection header; it sends one graph over
+ * each of a number of connections and exits with status 1 if any is lost
+ * Both processes must be given the same options. Each JVM's System.nanoTime has its own origin,
+ * so graphs carry the time they were due by the wall clock: on one host both processes read
+ * the same clock, and across hosts latencies are only as accurate as the hosts' clock
+ * synchronization. A receiver gives up once no graph has arrived for the timeout, in case a
+ * sender died before sending its last graph
+ *
+ * Options (system properties):
+ *      - transport: blocking (GraphConnection to ReceiveServer) or nio (NioSender to NioReceiver)
+ *      - port: port of the receiver (default 5000, or any free port in one JVM)
+ *      - rate: target graphs per second across all connections; 0 to send as fast as
+ *        possible (default 0)
+ *      - concurrency: number of connections (default 4)
+ *      - objects: sample objects in each graph (default 100)
+ *      - format: XML or BINARY (default BINARY)
+ *      - compress: true to offer compressed frames (default false)
+ *      - warmup: seconds sent before measuring (default 2)
+ *      - duration: seconds measured (default 10)
+ *      - decoders: decoding threads of the nio receiver (default one per processor)
+ *      - timeout: seconds a receiver waits after the last graph arrived before reporting
+ *        without the senders' last graphs (default 30)
+ *      - connections: connections opened by connect (default 200)
+ *
+ * Example: java -Dtransport=nio -Drate=20000 -Dconcurrency=8 LoadHarness
+ *
+ * @author Sukhjot Sekhon
+ */
+public class LoadHarness {
+    private static final String TRANSPORT = System.getProperty("transport", "blocking");
+    private static final long RATE = Long.getLong("rate", 0);
+    private static final int CONCURRENCY = Integer.getInteger("concurrency", 4);
+    private static final int OBJECTS = Integer.getInteger("objects", 100);
+    private static final GraphFormat FORMAT = GraphFormat.valueOf(System.getProperty("format", "BINARY").toUpperCase());
+    private static final boolean COMPRESS = Boolean.getBoolean("compress");
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("warmup", 2));
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("duration", 10));
+    private static final int DECODERS = Integer.getInteger("decoders", Runtime.getRuntime().availableProcessors());
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("timeout", 30));
+    private static final int CONNECTIONS = Integer.getInteger("connections", 200);
+    private static final int MAX_IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+    // Turns System.nanoTime into wall-clock time; read once, so times within a JVM stay monotonic
+    private static final long CLOCK_OFFSET = epochNanos() - System.nanoTime();
+
+    /**
+     * Root of every graph sent
+     */
+    static final class Message {
+        long dueNanos; // When the graph was due to be sent, by wallNanos
+        boolean warmup; // Sent before measuring; not recorded
+        boolean last; // Final graph of a connection, sent once its run is over
+        Object body;
+
+        Message() {} // Instantiated by the receiving deserializer
+
+        Message(long dueNanos, boolean warmup, boolean last, Object body) {
+            this.dueNanos = dueNanos;
+            this.warmup = warmup;
+            this.last = last;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Sending end of one connection
+     */
+    private interface Link extends Closeable {
+        void send(Message message) throws IOException;
+    }
+
+    /**
+     * Records every received graph; called by any number of receiving threads
+     */
+    private static final class Recorder implements Consumer<HashMap<Integer, Object>> {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder graphs = new LongAdder();
+        final LongAdder objects = new LongAdder();
+        final AtomicLong firstNanos = new AtomicLong(Long.MAX_VALUE); // First measured graph received
+        final AtomicLong lastNanos = new AtomicLong(Long.MIN_VALUE); // Last measured graph received
+        final AtomicLong lastArrivalNanos = new AtomicLong(); // Any graph, by System.nanoTime; 0 before the first
+        final CountDownLatch finished = new CountDownLatch(CONCURRENCY); // Connections that sent their last graph
+
+        @Override
+        public void accept(HashMap<Integer, Object> graph) {
+            long now = wallNanos();
+            lastArrivalNanos.set(System.nanoTime());
+            Message message = (Message) graph.get(1); // The root is written first
+            if (message.last) {
+                finished.countDown();
+                return;
+            }
+            if (message.warmup) return;
+            latencies.record(now - message.dueNanos);
+            graphs.increment();
+            objects.add(graph.size());
+            firstNanos.accumulateAndGet(now, Math::min);
+            lastNanos.accumulateAndGet(now, Math::max);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        switch (mode) {
+            case "both":
+                Recorder recorder = new Recorder();
+                try (Closeable receiver = startReceiver(Integer.getInteger("port", 0), recorder)) {
+                    long sent = send("localhost", port(receiver));
+                    if (!recorder.finished.await(30, TimeUnit.SECONDS))
+                        System.out.println("Timed out waiting for the last graphs");
+                    System.out.println("Sent " + sent + " graphs");
+                    report(recorder);
+                }
+                break;
+            case "receive":
+                Recorder received = new Recorder();
+                try (Closeable receiver = startReceiver(Integer.getInteger("port", 5000), received)) {
+                    System.out.println("Receiving on port " + port(receiver) + " from " + CONCURRENCY + " connection(s)...");
+                    if (!awaitSenders(received))
+                        System.out.println("No graph received for " + TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS)
+                                + " s; reporting without the last graphs of every connection");
+                    report(received);
+                }
+                break;
+            case "send":
+                long sent = send(args.length > 1 ? args[1] : "localhost", Integer.getInteger("port", 5000));
+                System.out.println("Sent " + sent + " graphs");
+                break;
+            case "connect":
+                if (!checkConnections()) System.exit(1);
+                break;
+            default:
+                System.out.println("Usage: java LoadHarness [receive | send [host] | connect]");
+        }
+    }
+
+    /**
+     * Waits until every connection has sent its last graph, or until none has arrived for the
+     * timeout since the senders started
+     * @param recorder sink of every received graph
+     * @return true if every connection finished
+     */
+    private static boolean awaitSenders(Recorder recorder) throws InterruptedException {
+        while (!recorder.finished.await(1, TimeUnit.SECONDS)) {
+            long lastArrival = recorder.lastArrivalNanos.get();
+            if (lastArrival != 0 && System.nanoTime() - lastArrival > TIMEOUT_NANOS) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts the receiver of the configured transport
+     * @param port port to listen on; 0 for any free port
+     * @param recorder sink of every received graph
+     * @return started receiver
+     */
+    private static Closeable startReceiver(int port, Consumer<HashMap<Integer, Object>> recorder) throws IOException {
+        if (TRANSPORT.equals("nio")) {
+            NioReceiver receiver = new NioReceiver(port, DECODERS, recorder);
+            receiver.start();
+            return receiver;
+        }
+        ReceiveServer receiver = new ReceiveServer(port, CONCURRENCY, MAX_IN_FLIGHT_BYTES, recorder);
+        receiver.start();
+        return receiver;
+    }
+
+    private static int port(Closeable receiver) {
+        return receiver instanceof NioReceiver ? ((NioReceiver) receiver).getPort() : ((ReceiveServer) receiver).getPort();
+    }
+
+    /**
+     * Sends graphs over every connection for the warmup and the measured duration
+     * @param host host of the receiver
+     * @param port port of the receiver
+     * @return number of measured graphs sent
+     */
+    private static long send(String host, int port) throws Exception {
+        NioSender nioSender = TRANSPORT.equals("nio") ? new NioSender(FORMAT, COMPRESS) : null;
+        Link[] links = new Link[CONCURRENCY];
+        for (int i = 0; i < CONCURRENCY; i++) links[i] = nioSender != null ? nioLink(nioSender.connect(host, port)) : blockingLink(host, port);
+
+        LongAdder sent = new LongAdder();
+        long start = System.nanoTime();
+        Thread[] senders = new Thread[CONCURRENCY];
+        for (int i = 0; i < CONCURRENCY; i++) {
+            Link link = links[i];
+            long offset = RATE > 0 ? TimeUnit.SECONDS.toNanos(1) * i / RATE : 0; // Spreads the connections over an interval
+            senders[i] = new Thread(() -> runSender(link, start + offset, start, sent), "LoadHarness-sender-" + i);
+            senders[i].start();
+        }
+        for (Thread sender : senders) sender.join();
+
+        for (Link link : links) link.close();
+        if (nioSender != null) nioSender.close();
+        return sent.sum();
+    }
+
+    /**
+     * Sends one graph over each of CONNECTIONS new connections and waits for all of them
+     * Senders send their first frame without waiting for the answer to the header, so the
+     * receiver often reads the frame together with the header
+     * @return true if every graph arrived
+     */
+    private static boolean checkConnections() throws Exception {
+        LongAdder received = new LongAdder();
+        try (Closeable receiver = startReceiver(0, graph -> received.increment())) {
+            NioSender nioSender = TRANSPORT.equals("nio") ? new NioSender(FORMAT, COMPRESS) : null;
+            Object body = newBody();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Link link = nioSender != null ? nioLink(nioSender.connect("localhost", port(receiver))) : blockingLink("localhost", port(receiver));
+                link.send(new Message(wallNanos(), false, false, body));
+                link.close();
+            }
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (received.sum() < CONNECTIONS && System.nanoTime() < deadline) LockSupport.parkNanos(1_000_000);
+            if (nioSender != null) nioSender.close();
+        }
+        System.out.println("Transport " + TRANSPORT + ": received " + received.sum() + " of " + CONNECTIONS
+                + " graphs sent over a new connection each");
+        return received.sum() == CONNECTIONS;
+    }
+
+    /**
+     * Sends graphs over one connection on schedule, then its last graph
+     * Every graph holds the time it was due, so one sent late is measured from when it was due
+     * @param link connection to send over
+     * @param firstDue time the first graph is due
+     * @param start time the run started
+     * @param sent counts measured graphs sent
+     */
+    private static void runSender(Link link, long firstDue, long start, LongAdder sent) {
+        long interval = RATE > 0 ? TimeUnit.SECONDS.toNanos(1) * CONCURRENCY / RATE : 0;
+        long warmupEnd = start + WARMUP_NANOS;
+        long end = warmupEnd + DURATION_NANOS;
+        Object body = newBody();
+        try {
+            long due = firstDue;
+            while (true) {
+                long now = System.nanoTime();
+                if (interval == 0) due = now;
+                else if (due > now) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
+                }
+                if (due >= end) break;
+                boolean warmup = due < warmupEnd;
+                link.send(new Message(due + CLOCK_OFFSET, warmup, false, body));
+                if (!warmup) sent.increment();
+                due += interval;
+            }
+            link.send(new Message(wallNanos(), false, true, null));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the wall-clock time, comparable between processes, at the resolution of System.nanoTime
+     * @return nanoseconds since the epoch
+     */
+    private static long wallNanos() {
+        return System.nanoTime() + CLOCK_OFFSET;
+    }
+
+    private static long epochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * Creates the graph carried by every message: an array of sample objects
+     */
+    private static Object newBody() {
+        Object[] elements = new Object[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) elements[i] = new ObjPrimitive(i, i + 1, i + 2);
+        return new ObjReferenceArray(elements);
+    }
+
+    private static Link blockingLink(String host, int port) throws IOException {
+        GraphConnection connection = new GraphConnection(host, port, FORMAT, COMPRESS);
+        return new Link() {
+            public void send(Message message) throws IOException {
+                connection.send(Collections.singletonList(message));
+            }
+
+            public void close() throws IOException {
+                connection.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a non-blocking connection so each send waits until the previous frame is written,
+     * like a blocking connection, instead of queueing without bound
+     */
+    private static Link nioLink(NioSender.Connection connection) {
+        return new Link() {
+            public void send(Message message) throws IOException {
+                awaitFlushed(connection);
+                connection.send(Collections.singletonList(message));
+            }
+
+            public void close() {
+                connection.close();
+                awaitFlushed(connection);
+            }
+        };
+    }
+
+    private static void awaitFlushed(NioSender.Connection connection) {
+        while (!connection.isFlushed()) LockSupport.parkNanos(10_000);
+    }
+
+    /**
+     * Prints the throughput and latency of the measured graphs
+     */
+    private static void report(Recorder recorder) throws IOException {
+        FrameBuffer graph = new FrameBuffer();
+        new Serializer().serialize(Collections.singletonList(new Message(0, false, false, newBody())), graph, FORMAT);
+
+        long graphs = recorder.graphs.sum();
+        double seconds = graphs < 2 ? 0 : (recorder.lastNanos.get() - recorder.firstNanos.get()) / 1e9;
+        System.out.printf("Transport %s, %s%s, %d connection(s), target %s, %d bytes per graph before framing%n",
+                TRANSPORT, FORMAT, COMPRESS ? " compressed" : "", CONCURRENCY,
+                RATE > 0 ? RATE + " graphs/s" : "unlimited", graph.size());
+        if (seconds == 0) {
+            System.out.println("Received " + graphs + " measured graph(s); too few to measure");
+            return;
+        }
+        System.out.printf("Received %d graphs in %.2f s: %.1f graphs/s, %.0f objects/s, %.2f MB/s%n",
+                graphs, seconds, graphs / seconds, recorder.objects.sum() / seconds,
+                graphs * (double) graph.size() / seconds / (1024 * 1024));
+        recorder.latencies.print(System.out, "us", 1000);
+    }
+}
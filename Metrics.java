@@ -0,0 +1,104 @@
+/**
+ * Counters and timers of every stage from serialization to deserialization
+ * Recorded into the registry selected with -Dmetrics when this class is loaded:
+ *      - jmx (the default): a JmxMetricsRegistry
+ *      - none: nothing is recorded; ENABLED is false, so the JIT drops every guarded call
+ *      - a class name: an instance of that MetricsRegistry, made with its no-argument constructor
+ *
+ * Stages report whole graphs and frames rather than single objects, so recording costs a
+ * few counter updates per graph
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class Metrics {
+    private static final MetricsRegistry REGISTRY = createRegistry(System.getProperty("metrics", "jmx"));
+    public static final boolean ENABLED = REGISTRY != null;
+    private static final MetricsRegistry.Counter NO_COUNTER = amount -> {}; // Given out while disabled
+    private static final MetricsRegistry.Timer NO_TIMER = nanos -> {};
+
+    public static final MetricsRegistry.Counter GRAPHS_SERIALIZED =
+            counter("graphsSerialized", "Graphs serialized");
+    public static final MetricsRegistry.Counter OBJECTS_SERIALIZED =
+            counter("objectsSerialized", "Objects written by serializers");
+    public static final MetricsRegistry.Counter FIELDS_VISITED =
+            counter("fieldsVisited", "Fields written by class codecs");
+    public static final MetricsRegistry.Counter REFLECTION_LOOKUPS =
+            counter("reflectionLookups", "Classes, fields, and constructors looked up reflectively; each is cached after its first lookup");
+    public static final MetricsRegistry.Counter BYTES_ENCODED =
+            counter("bytesEncoded", "Bytes of serialized graphs framed for sending, before compression");
+    public static final MetricsRegistry.Counter BYTES_SENT =
+            counter("bytesSent", "Frame bytes framed for sending, after compression");
+    public static final MetricsRegistry.Counter BYTES_RECEIVED =
+            counter("bytesReceived", "Frame bytes received");
+    public static final MetricsRegistry.Counter GRAPHS_DESERIALIZED =
+            counter("graphsDeserialized", "Graphs deserialized");
+    public static final MetricsRegistry.Counter OBJECTS_DESERIALIZED =
+            counter("objectsDeserialized", "Objects in deserialized graphs");
+    public static final MetricsRegistry.Timer SERIALIZE_TIME =
+            timer("serializeTime", "Time spent serializing each graph");
+    public static final MetricsRegistry.Timer DESERIALIZE_TIME =
+            timer("deserializeTime", "Time spent deserializing each graph");
+
+    private Metrics() {}
+
+    /**
+     * Gets the registry metrics are recorded into
+     * @return registry, or null if metrics are disabled
+     */
+    public static MetricsRegistry getRegistry() {
+        return REGISTRY;
+    }
+
+    /**
+     * Gets the start time of an operation to be timed
+     * @return System.nanoTime(), or 0 without reading the clock if metrics are disabled
+     */
+    public static long startTime() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records one serialized graph
+     * @param startTime time from startTime() when serialization began
+     * @param objects number of objects written
+     * @param fields number of fields written
+     */
+    public static void graphSerialized(long startTime, int objects, long fields) {
+        if (!ENABLED) return;
+        SERIALIZE_TIME.record(System.nanoTime() - startTime);
+        GRAPHS_SERIALIZED.add(1);
+        OBJECTS_SERIALIZED.add(objects);
+        FIELDS_VISITED.add(fields);
+    }
+
+    /**
+     * Records one deserialized graph
+     * @param startTime time from startTime() when deserialization began
+     * @param objects number of objects in the graph
+     */
+    public static void graphDeserialized(long startTime, int objects) {
+        if (!ENABLED) return;
+        DESERIALIZE_TIME.record(System.nanoTime() - startTime);
+        GRAPHS_DESERIALIZED.add(1);
+        OBJECTS_DESERIALIZED.add(objects);
+    }
+
+    private static MetricsRegistry.Counter counter(String name, String description) {
+        return ENABLED ? REGISTRY.counter(name, description) : NO_COUNTER;
+    }
+
+    private static MetricsRegistry.Timer timer(String name, String description) {
+        return ENABLED ? REGISTRY.timer(name, description) : NO_TIMER;
+    }
+
+    private static MetricsRegistry createRegistry(String name) {
+        if (name.equals("none")) return null;
+        if (name.equals("jmx")) return new JmxMetricsRegistry();
+        try {
+            return (MetricsRegistry) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            System.out.println("Cannot create metrics registry " + name + ": " + e + "; metrics are disabled");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Source of the counters and timers serialization, transport, and deserialization record into
+ * The registry is chosen once, when Metrics is loaded (see Metrics); implementations must be
+ * safe to record into from any number of threads at once
+ *
+ * @author Sukhjot Sekhon
+ */
+public interface MetricsRegistry {
+    /**
+     * Creates a counter; called once per name
+     * @param name name of the counter
+     * @param description what the counter counts
+     * @return counter recording into this registry
+     */
+    Counter counter(String name, String description);
+
+    /**
+     * Creates a timer; called once per name
+     * @param name name of the timer
+     * @param description what the timer times
+     * @return timer recording into this registry
+     */
+    Timer timer(String name, String description);
+
+    interface Counter {
+        void add(long amount);
+    }
+
+    interface Timer {
+        /**
+         * Records one timed operation
+         * @param nanos duration in nanoseconds
+         */
+        void record(long nanos);
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking receive server for framed connections
+ * One selector thread reads every connection into a single reusable buffer and reassembles
+ * frames incrementally; complete frames are decoded on a worker pool, in order per connection
+ * Suited to many mostly-idle connections, which cost a FrameAssembler each instead of a thread
+ *
+ * A connection whose queued frames exceed MAX_QUEUED_BYTES is not read again until its worker
+ * catches up, so a fast sender is held back by TCP flow control instead of filling the heap
+ *
+ * @author Sukhjot Sekhon
+ */
+public class NioReceiver implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_QUEUED_BYTES = 16 * 1024 * 1024; // Frames queued per connection before reading pauses
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // Shared by all connections
+    private final ExecutorService decoders;
+    private final Consumer<HashMap<Integer, Object>> sink;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * State of one connection, owned by the selector thread except for the decode queue
+     */
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final FrameAssembler assembler = new FrameAssembler();
+        final FrameDecoder decoder = new FrameDecoder(); // Only used by the worker draining decodeQueue
+        // Same; created when the header is answered, before the first frame is queued, so the
+        // lock on the queue publishes it to the worker
+        Deserializer deserializer;
+        boolean answered; // True once the connection header has been answered
+        final ArrayDeque<byte[]> decodeQueue = new ArrayDeque<>(); // Guarded by this
+        boolean decoding; // Guarded by this; true while a worker drains decodeQueue
+        long queuedBytes; // Guarded by this; bytes of the frames queued or being decoded
+        boolean paused; // Guarded by this; true while reading waits for the queue to drain
+        final ConnectionEvent event; // Only touched on the selector thread
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            event = new ConnectionEvent(ConnectionEvent.RECEIVE, channel.socket().getRemoteSocketAddress());
+        }
+
+        /**
+         * Queues a complete frame, starting a worker for this connection if none is running
+         * Reading stops once the queue holds more than MAX_QUEUED_BYTES
+         */
+        void enqueue(byte[] frame) {
+            event.count(1, 4 + frame.length);
+            synchronized (this) {
+                decodeQueue.add(frame);
+                queuedBytes += frame.length;
+                if (queuedBytes > MAX_QUEUED_BYTES && !paused) {
+                    paused = true;
+                    key.interestOps(0);
+                }
+                if (decoding) return;
+                decoding = true;
+            }
+            decoders.execute(this::drain);
+        }
+
+        /**
+         * Decodes queued frames in arrival order
+         */
+        void drain() {
+            while (true) {
+                byte[] frame;
+                synchronized (this) {
+                    frame = decodeQueue.poll();
+                    if (frame == null) {
+                        decoding = false;
+                        return;
+                    }
+                }
+                try {
+                    InputStream graph = decoder.decode(frame, frame.length);
+                    if (graph != null) sink.accept(FrameProtocol.readGraph(deserializer, graph));
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Could not decode frame from " + channel.socket().getRemoteSocketAddress() + ": " + e);
+                }
+                decoder.trim();
+                synchronized (this) {
+                    queuedBytes -= frame.length;
+                    if (paused && queuedBytes <= MAX_QUEUED_BYTES) resume();
+                }
+            }
+        }
+
+        /**
+         * Reads the connection again after a pause; the selector may be waiting without it
+         */
+        private void resume() {
+            paused = false;
+            try {
+                key.interestOps(SelectionKey.OP_READ);
+                selector.wakeup();
+            } catch (CancelledKeyException e) {
+                // Closed while paused
+            }
+        }
+
+        synchronized boolean isPaused() {
+            return paused;
+        }
+    }
+
+    /**
+     * Binds the server channel
+     * @param port port to listen on
+     * @param decoderThreads number of threads decoding frames
+     * @param sink receives the HashMap of deserialized objects of every frame; must be thread-safe
+     */
+    public NioReceiver(int port, int decoderThreads, Consumer<HashMap<Integer, Object>> sink) throws IOException {
+        this.sink = sink;
+        decoders = Executors.newFixedThreadPool(decoderThreads);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the selector thread
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "NioReceiver-selector-" + getPort());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Closes every connection and waits briefly for queued frames to be decoded
+     */
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            if (selectorThread != null) selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel.close();
+        decoders.shutdown();
+        try {
+            if (!decoders.awaitTermination(5, TimeUnit.SECONDS)) decoders.shutdownNow();
+        } catch (InterruptedException e) {
+            decoders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else if (key.isReadable()) read(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) closeQuietly(key);
+            try {
+                selector.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            openConnections.incrementAndGet();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            int length;
+            do {
+                readBuffer.clear();
+                length = connection.channel.read(readBuffer);
+                readBuffer.flip();
+                connection.assembler.feed(readBuffer, connection::enqueue);
+                if (!connection.answered && connection.assembler.getOfferedOptions() >= 0) {
+                    answerHeader(connection);
+                    connection.assembler.feed(readBuffer, connection::enqueue); // Frames read with the header
+                }
+            } while (length == READ_BUFFER_SIZE && !connection.isPaused()); // A full buffer may mean more bytes are waiting
+            if (length < 0) {
+                if (!connection.assembler.isIdle())
+                    System.out.println("Connection from " + connection.channel.socket().getRemoteSocketAddress() + " closed mid-frame");
+                closeQuietly(key);
+            }
+        } catch (IOException e) {
+            System.out.println("Connection from " + connection.channel.socket().getRemoteSocketAddress() + " failed: " + e);
+            closeQuietly(key);
+        }
+    }
+
+    /**
+     * Sends the options accepted for a connection; a single byte always fits in a new socket's buffer
+     */
+    private void answerHeader(Connection connection) throws IOException {
+        int accepted = FrameProtocol.acceptOptions(connection.assembler.getOfferedOptions());
+        connection.deserializer = FrameProtocol.newDeserializer(accepted);
+        connection.channel.write(ByteBuffer.wrap(new byte[] {(byte) accepted}));
+        connection.answered = true;
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) { e.printStackTrace(); }
+        if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).event.finish();
+            openConnections.decrementAndGet();
+        }
+        key.attach(null);
+    }
+}
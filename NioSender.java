@@ -0,0 +1,235 @@
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking sending engine for many framed connections
+ * Graphs are serialized on the calling thread and queued; one selector thread connects the
+ * channels and writes queued frames as each socket becomes writable
+ * Frames are compressed once the receiver has accepted compression for the connection
+ *
+ * @author Sukhjot Sekhon
+ */
+public class NioSender implements Closeable {
+    private final Selector selector;
+    private final GraphFormat format;
+    private final boolean compress;
+    private final Serializer serializer = new Serializer(); // Shared by every connection; each graph gets its own session
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>(); // Run on the selector thread
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    /**
+     * Outgoing connection managed by this sender
+     */
+    public class Connection implements Closeable {
+        private final SocketChannel channel;
+        private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final FrameEncoder encoder = new FrameEncoder(false); // Compresses once the receiver accepts
+        private final FrameBuffer graph = new FrameBuffer();
+        private final ConnectionEvent event; // Guarded by encoder
+        private boolean answered; // Only touched on the selector thread; true once the header is answered
+        private SelectionKey key; // Only touched on the selector thread
+
+        private Connection(SocketChannel channel, Object remoteAddress) {
+            this.channel = channel;
+            event = new ConnectionEvent(ConnectionEvent.SEND, remoteAddress);
+        }
+
+        /**
+         * Serializes objects as one graph and queues it as one frame
+         * @param objs root objects of the graph
+         */
+        public void send(Collection<?> objs) throws IOException {
+            if (!channel.isOpen()) throw new IOException("Connection is closed");
+            FrameBuffer frames = new FrameBuffer(); // Not reused since it is queued until written
+            synchronized (encoder) {
+                graph.reset();
+                serializer.serialize(objs, encoder.track(format.newWriter(graph)));
+                event.count(encoder.encode(graph, frames), frames.size());
+                writeQueue.add(ByteBuffer.wrap(frames.array(), 0, frames.size()));
+            }
+            runOnSelector(this::updateInterest);
+        }
+
+        /**
+         * Checks whether every queued frame has been written to the socket
+         * @return true if nothing is waiting to be written
+         */
+        public boolean isFlushed() {
+            return writeQueue.isEmpty();
+        }
+
+        /**
+         * Closes the connection once all queued frames have been written
+         */
+        public void close() {
+            runOnSelector(() -> {
+                writeQueue.add(CLOSE_MARKER);
+                updateInterest();
+            });
+        }
+
+        private void updateInterest() {
+            if (key == null || !key.isValid() || !channel.isConnected()) return;
+            int ops = answered ? 0 : SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /**
+         * Reads the receiver's answer to the connection header
+         * Frames queued before it arrives are sent uncompressed
+         */
+        private void readAnswer() throws IOException {
+            ByteBuffer answer = ByteBuffer.allocate(1);
+            int length = channel.read(answer);
+            if (length < 0) throw new IOException("Receiver closed the connection during the header");
+            if (length == 0) return;
+            encoder.setCompression((answer.get(0) & FrameProtocol.OPTION_DEFLATE) != 0);
+            answered = true;
+            updateInterest();
+        }
+
+        private void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.peek()) != null) {
+                if (buffer == CLOSE_MARKER) {
+                    writeQueue.clear();
+                    closeChannel(key);
+                    return;
+                }
+                channel.write(buffer);
+                if (buffer.hasRemaining()) return; // Socket is full; wait until it is writable again
+                writeQueue.poll();
+            }
+            updateInterest();
+        }
+    }
+
+    private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+
+    /**
+     * Opens the selector and starts its thread
+     * @param format format graphs are serialized in
+     */
+    public NioSender(GraphFormat format) throws IOException {
+        this(format, false);
+    }
+
+    /**
+     * Opens the selector and starts its thread
+     * @param format format graphs are serialized in
+     * @param compress true to offer compressed frames; used on connections whose receiver accepts
+     */
+    public NioSender(GraphFormat format, boolean compress) throws IOException {
+        this.format = format;
+        this.compress = compress;
+        selector = Selector.open();
+        selectorThread = new Thread(this::selectLoop, "NioSender-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Starts connecting to a receiver; frames can be queued before the connection completes
+     * @param host host of the receiver
+     * @param port port of the receiver
+     * @return connection to send graphs over
+     */
+    public Connection connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.connect(new InetSocketAddress(host, port));
+
+        Connection connection = new Connection(channel, host + ":" + port);
+        FrameBuffer header = new FrameBuffer();
+        FrameProtocol.writeHeader(new DataOutputStream(header), compress ? FrameProtocol.OPTION_DEFLATE : 0);
+        connection.writeQueue.add(ByteBuffer.wrap(header.toByteArray()));
+        runOnSelector(() -> {
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            } catch (IOException e) {
+                System.out.println("Could not register connection to " + host + ":" + port + ": " + e);
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Closes every connection immediately, dropping frames that have not been written
+     */
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable() && connection.channel.finishConnect())
+                            connection.updateInterest();
+                        if (key.isValid() && key.isReadable())
+                            connection.readAnswer();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        System.out.println("Connection to " + connection.channel.socket().getRemoteSocketAddress() + " failed: " + e);
+                        closeChannel(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) closeChannel(key);
+            try {
+                selector.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    private static void closeChannel(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) { e.printStackTrace(); }
+        if (key.attachment() instanceof Connection) {
+            Connection connection = (Connection) key.attachment();
+            synchronized (connection.encoder) {
+                connection.event.finish();
+            }
+        }
+    }
+}
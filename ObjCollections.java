@@ -5,7 +5,9 @@ import java.util.ArrayList;
  *
  * @author Sukhjot Sekhon
  */
-public class ObjCollections {
+public class ObjCollections implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
     private ArrayList<Integer> arrayListObj;
 
     public ObjCollections() {}
@@ -3,7 +3,9 @@
  *
  * @author Sukhjot Sekhon
  */
-public class ObjPrimitive {
+public class ObjPrimitive implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
     private int firstInt;
     private int secondInt;
     private int thirdInt;
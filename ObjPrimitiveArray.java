@@ -3,7 +3,9 @@
  *
  * @author Sukhjot Sekhon
  */
-public class ObjPrimitiveArray {
+public class ObjPrimitiveArray implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
     private int[] arrayObj;
 
     public ObjPrimitiveArray() {}
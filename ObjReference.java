@@ -3,7 +3,9 @@
  *
  * @author Sukhjot Sekhon
  */
-public class ObjReference {
+public class ObjReference implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Object refObj;
 
     public ObjReference() {}
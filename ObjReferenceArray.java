@@ -3,7 +3,9 @@
  *
  * @author Sukhjot Sekhon
  */
-public class ObjReferenceArray {
+public class ObjReferenceArray implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Object[] arrayObj;
 
     public ObjReferenceArray() {}
@@ -0,0 +1,73 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * How an object is written: field by field, element by element, or as a single value
+ *
+ *      - OBJECT: fields found by reflection
+ *      - ARRAY: elements; primitive arrays are packed
+ *      - COLLECTION: length, then a reference (or null) per element in iteration order
+ *      - MAP: length, then a key reference and a value reference per entry
+ *      - VALUE: boxed primitives and Strings, which have no accessible fields and are
+ *        written as one value
+ *
+ * Only the exact collection and map classes below are supported; their contents are written
+ * through the Collection and Map interfaces instead of their private fields
+ *
+ * @author Sukhjot Sekhon
+ */
+public enum ObjectKind {
+    OBJECT,
+    ARRAY,
+    COLLECTION,
+    MAP,
+    VALUE;
+
+    private static final HashMap<Class, ObjectKind> KINDS = new HashMap<>(); // Never changed after class init
+    private static final HashMap<Class, Class> VALUE_TYPES = new HashMap<>();
+    static {
+        KINDS.put(ArrayList.class, COLLECTION);
+        KINDS.put(LinkedList.class, COLLECTION);
+        KINDS.put(ArrayDeque.class, COLLECTION);
+        KINDS.put(HashSet.class, COLLECTION);
+        KINDS.put(HashMap.class, MAP);
+        KINDS.put(TreeMap.class, MAP);
+        KINDS.put(LinkedHashMap.class, MAP);
+
+        VALUE_TYPES.put(Integer.class, int.class);
+        VALUE_TYPES.put(Long.class, long.class);
+        VALUE_TYPES.put(Double.class, double.class);
+        VALUE_TYPES.put(Float.class, float.class);
+        VALUE_TYPES.put(Short.class, short.class);
+        VALUE_TYPES.put(Character.class, char.class);
+        VALUE_TYPES.put(Byte.class, byte.class);
+        VALUE_TYPES.put(Boolean.class, boolean.class);
+        VALUE_TYPES.put(String.class, String.class);
+        for (Class valueClass : VALUE_TYPES.keySet()) KINDS.put(valueClass, VALUE);
+    }
+
+    /**
+     * Gets the kind of a class
+     * @param objClass class of an object
+     * @return kind the object is written as
+     */
+    public static ObjectKind of(Class objClass) {
+        if (objClass.isArray()) return ARRAY;
+        ObjectKind kind = KINDS.get(objClass);
+        return kind == null ? OBJECT : kind;
+    }
+
+    /**
+     * Gets the type of the value held by a value class
+     * @param valueClass boxed primitive class or String
+     * @return primitive type for boxes, String for String
+     */
+    public static Class valueType(Class valueClass) {
+        return VALUE_TYPES.get(valueClass);
+    }
+}
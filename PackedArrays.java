@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts primitive arrays to and from packed little-endian bytes in bulk
+ * Uses ByteBuffer views, so elements are copied without boxing or per-element calls;
+ * booleans are packed as one byte each (0 or 1)
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class PackedArrays {
+
+    private PackedArrays() {}
+
+    /**
+     * Gets the number of bytes one packed element takes
+     * @param componentType primitive component type of the array
+     * @return size of an element in bytes
+     */
+    public static int elementSize(Class componentType) {
+        if (componentType == long.class || componentType == double.class) return 8;
+        if (componentType == int.class || componentType == float.class) return 4;
+        if (componentType == short.class || componentType == char.class) return 2;
+        return 1;
+    }
+
+    /**
+     * Packs elements of a primitive array into bytes
+     * @param array primitive array to read
+     * @param from index of the first element
+     * @param count number of elements
+     * @param dst buffer receiving count * elementSize bytes
+     * @param dstOffset position in the buffer of the first byte
+     */
+    public static void pack(Object array, int from, int count, byte[] dst, int dstOffset) {
+        if (array instanceof byte[]) {
+            System.arraycopy(array, from, dst, dstOffset, count);
+        } else if (array instanceof boolean[]) {
+            boolean[] values = (boolean[]) array;
+            for (int i = 0; i < count; i++) dst[dstOffset + i] = (byte) (values[from + i] ? 1 : 0);
+        } else {
+            ByteBuffer bytes = view(dst, dstOffset, count * elementSize(array.getClass().getComponentType()));
+            if (array instanceof int[]) bytes.asIntBuffer().put((int[]) array, from, count);
+            else if (array instanceof long[]) bytes.asLongBuffer().put((long[]) array, from, count);
+            else if (array instanceof double[]) bytes.asDoubleBuffer().put((double[]) array, from, count);
+            else if (array instanceof float[]) bytes.asFloatBuffer().put((float[]) array, from, count);
+            else if (array instanceof short[]) bytes.asShortBuffer().put((short[]) array, from, count);
+            else if (array instanceof char[]) bytes.asCharBuffer().put((char[]) array, from, count);
+            else throw new IllegalArgumentException("Not a primitive array: " + array.getClass().getName());
+        }
+    }
+
+    /**
+     * Unpacks bytes into elements of a primitive array
+     * @param src buffer holding count * elementSize bytes
+     * @param srcOffset position in the buffer of the first byte
+     * @param array primitive array to set
+     * @param from index of the first element to set
+     * @param count number of elements
+     */
+    public static void unpack(byte[] src, int srcOffset, Object array, int from, int count) {
+        if (array instanceof byte[]) {
+            System.arraycopy(src, srcOffset, array, from, count);
+        } else if (array instanceof boolean[]) {
+            boolean[] values = (boolean[]) array;
+            for (int i = 0; i < count; i++) values[from + i] = src[srcOffset + i] != 0;
+        } else {
+            ByteBuffer bytes = view(src, srcOffset, count * elementSize(array.getClass().getComponentType()));
+            if (array instanceof int[]) bytes.asIntBuffer().get((int[]) array, from, count);
+            else if (array instanceof long[]) bytes.asLongBuffer().get((long[]) array, from, count);
+            else if (array instanceof double[]) bytes.asDoubleBuffer().get((double[]) array, from, count);
+            else if (array instanceof float[]) bytes.asFloatBuffer().get((float[]) array, from, count);
+            else if (array instanceof short[]) bytes.asShortBuffer().get((short[]) array, from, count);
+            else if (array instanceof char[]) bytes.asCharBuffer().get((char[]) array, from, count);
+            else throw new IllegalArgumentException("Not a primitive array: " + array.getClass().getName());
+        }
+    }
+
+    private static ByteBuffer view(byte[] bytes, int offset, int length) {
+        return ByteBuffer.wrap(bytes, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.stream.XMLStreamException;
+import org.jdom2.*;
+import org.jdom2.input.StAXStreamBuilder;
+
+/**
+ * Deserializes a document in two parallel phases on a fork/join pool
+ * First every object is instantiated into an array indexed by ID; once all exist, the fields
+ * and elements of every object are set, so each reference is found directly and nothing is patched.
+ * Collections and maps are filled last, after both phases
+ *
+ * XML streams are parsed into a document before both phases; binary streams are already
+ * read in one sequential pass and are deserialized as before
+ *
+ * @author Sukhjot Sekhon
+ */
+public class ParallelDeserializer extends Deserializer {
+    private static final int TASKS_PER_THREAD = 4; // Smaller ranges than threads, so idle threads can steal work
+
+    private final ForkJoinPool pool;
+
+    public ParallelDeserializer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool pool running both phases
+     */
+    public ParallelDeserializer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Deserializes a document, instantiating and then populating objects in parallel
+     *
+     * @param document Document to deserialize
+     * @return HashMap containing deserialized objects
+     */
+    @Override
+    public Object deserialize(Document document) {
+        GraphEvent event = new GraphEvent(GraphEvent.DESERIALIZE);
+        long start = Metrics.startTime();
+        // Copied to an array; the live child list is not safe to read from several threads
+        Element[] elems = document.getRootElement().getChildren().toArray(new Element[0]);
+        int[] ids = new int[elems.length];
+        int maxID = 0;
+        for (int i = 0; i < elems.length; i++) {
+            ids[i] = Integer.parseInt(elems[i].getAttributeValue("id"));
+            GraphBuilder.checkID(ids[i], elems.length); // The array is sized by the largest ID
+            maxID = Math.max(maxID, ids[i]);
+        }
+        Object[] objects = new Object[maxID + 1];
+
+        // Phase 1: instantiate every object; value objects are created from their value
+        forEachRange(elems.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                Class objClass = getClassResolver().resolve(elems[i].getAttributeValue("class"));
+                if (ObjectKind.of(objClass) == ObjectKind.VALUE) {
+                    objects[ids[i]] = valueOf(objClass, elems[i]);
+                } else {
+                    String length = elems[i].getAttributeValue("length");
+                    int objLength = length == null ? -1 : Integer.parseInt(length);
+                    checkArrayLength(objClass, objLength, elems[i]);
+                    objects[ids[i]] = GraphBuilder.instantiate(objClass, objLength, getClassResolver());
+                }
+            }
+        });
+
+        // Phase 2: set fields and elements now that every reference target exists
+        AtomicInteger unresolved = new AtomicInteger();
+        List<GraphBuilder.CollectionFill> fills = Collections.synchronizedList(new ArrayList<>());
+        forEachRange(elems.length, (from, to) -> {
+            GraphBuilder builder = new GraphBuilder(objects);
+            for (int i = from; i < to; i++) {
+                builder.populate(ids[i]);
+                setContent(builder, elems[i]);
+            }
+            unresolved.addAndGet(builder.getUnresolvedCount());
+            fills.addAll(builder.getCollectionFills());
+        });
+        unresolved.addAndGet(GraphBuilder.fillCollections(fills, objects));
+        if (unresolved.get() > 0)
+            System.out.println(unresolved.get() + " reference(s) to missing objects were left null");
+
+        HashMap<Integer, Object> hMap = new HashMap<>(elems.length * 4 / 3 + 1);
+        for (int id : ids) hMap.put(id, objects[id]);
+        return recordGraph(hMap, event, start);
+    }
+
+    /**
+     * Deserializes a stream; XML is parsed into a document and deserialized in parallel
+     *
+     * @param in stream containing the XML document
+     * @return HashMap containing deserialized objects
+     */
+    @Override
+    public Object deserialize(InputStream in) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        if (GraphFormat.detect(in) == GraphFormat.BINARY) return super.deserialize(in);
+
+        try {
+            return deserialize(new StAXStreamBuilder().build(INPUT_FACTORY.createXMLStreamReader(in)));
+        } catch (XMLStreamException | JDOMException e) { throw new IOException(e); }
+    }
+
+    /**
+     * Runs an action over ranges of [0, count) on the pool and waits for all of them
+     * @param count number of indices
+     * @param action action run once per range
+     */
+    private void forEachRange(int count, RangeAction action) {
+        if (count == 0) return;
+        int rangeSize = Math.max(1, count / (pool.getParallelism() * TASKS_PER_THREAD));
+        pool.invoke(new RangeTask(0, count, rangeSize, action));
+    }
+
+    /**
+     * Work done on a range of indices
+     */
+    private interface RangeAction {
+        void run(int from, int to);
+    }
+
+    /**
+     * Splits a range in half until it is small enough to run as one piece
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+        private final RangeAction action;
+
+        RangeTask(int from, int to, int rangeSize, RangeAction action) {
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rangeSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, rangeSize, action), new RangeTask(middle, to, rangeSize, action));
+                return;
+            }
+            action.run(from, to);
+        }
+    }
+}
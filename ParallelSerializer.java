@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serializes independent root objects in parallel on a fork/join pool
+ * The roots are split into ranges; each range is written by its own worker into the buffer of
+ * its own pooled session with IDs from blocks no other worker uses, and the buffers are joined in root order
+ * into one graph. Objects reachable from several roots are claimed through a shared
+ * identity table, so they are still written exactly once
+ *
+ * Graphs written to a GraphWriter other than a stream are serialized sequentially
+ *
+ * @author Sukhjot Sekhon
+ */
+public class ParallelSerializer extends Serializer {
+    private static final int TASKS_PER_THREAD = 4; // Smaller ranges than threads, so idle threads can steal work
+
+    private final ForkJoinPool pool;
+
+    public ParallelSerializer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool pool running the workers
+     */
+    public ParallelSerializer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Serialize objects by streaming them to an output stream in the given format
+     * Each range of roots is serialized by a separate worker
+     *
+     * @param objs root objects to serialize
+     * @param out stream to write to; it is flushed but not closed
+     * @param format wire format to write
+     */
+    @Override
+    public void serialize(Collection<?> objs, OutputStream out, GraphFormat format) throws IOException {
+        List<Object> roots = Arrays.asList(objs.toArray());
+        int rangeSize = Math.max(1, roots.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+        SerializationSession[] fragments = new SerializationSession[roots.size()]; // Indexed by the first root of each range
+
+        ConcurrentIdentityHandleTable sharedHandles = new ConcurrentIdentityHandleTable();
+        AtomicInteger sharedIds = new AtomicInteger(1);
+        GraphEvent event = new GraphEvent(GraphEvent.SERIALIZE);
+        long start = Metrics.startTime();
+        try {
+            if (!roots.isEmpty())
+                pool.invoke(new RangeTask(this, roots, 0, roots.size(), rangeSize, fragments, format, sharedHandles, sharedIds));
+
+            StreamingGraphWriter writer = format.newWriter(out);
+            writer.beginGraph();
+            for (SerializationSession fragment : fragments) {
+                if (fragment != null) writer.writeFragment(fragment.getBuffer().array(), 0, fragment.getBuffer().size());
+            }
+            writer.endGraph();
+
+            int objects = 0;
+            long fields = 0;
+            for (SerializationSession fragment : fragments) {
+                if (fragment == null) continue;
+                objects += fragment.getObjectsWritten();
+                fields += fragment.getFieldsWritten();
+            }
+            Metrics.graphSerialized(start, objects, fields);
+            event.finish(objects);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (SerializationSession fragment : fragments) {
+                if (fragment != null) getSessionPool().release(fragment);
+            }
+        }
+    }
+
+    /**
+     * Splits a range of roots in half until it is small enough to serialize as one fragment
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Serializer serializer;
+        private final List<Object> roots;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+        private final SerializationSession[] fragments;
+        private final GraphFormat format;
+        private final ConcurrentIdentityHandleTable sharedHandles;
+        private final AtomicInteger sharedIds;
+
+        RangeTask(Serializer serializer, List<Object> roots, int from, int to, int rangeSize, SerializationSession[] fragments,
+                  GraphFormat format, ConcurrentIdentityHandleTable sharedHandles, AtomicInteger sharedIds) {
+            this.serializer = serializer;
+            this.roots = roots;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+            this.fragments = fragments;
+            this.format = format;
+            this.sharedHandles = sharedHandles;
+            this.sharedIds = sharedIds;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rangeSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(serializer, roots, from, middle, rangeSize, fragments, format, sharedHandles, sharedIds),
+                        new RangeTask(serializer, roots, middle, to, rangeSize, fragments, format, sharedHandles, sharedIds));
+                return;
+            }
+
+            SerializationSession fragment = serializer.getSessionPool().acquire();
+            fragments[from] = fragment; // Released by the caller even if this range fails
+            fragment.shareGraph(sharedHandles, sharedIds);
+            try {
+                serializer.write(roots.subList(from, to), format.newFragmentWriter(fragment.getBuffer()), fragment);
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+    }
+}
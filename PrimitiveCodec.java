@@ -0,0 +1,183 @@
+/**
+ * Formats and parses the text form of primitive values straight from char buffers
+ * Integral types, chars, and booleans never go through a String or a box; chars are written
+ * as their UTF-16 code unit so any char survives XML. Floating point values use the JDK's
+ * shortest round-trip text, which does allocate a String
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class PrimitiveCodec {
+    public static final int MAX_LENGTH = 32; // Longest text of any primitive value
+
+    private static final char[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final char[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private PrimitiveCodec() {}
+
+    /**
+     * Formats a boxed primitive value
+     * @param value boxed value
+     * @param dst buffer of at least MAX_LENGTH chars
+     * @return number of chars written
+     */
+    public static int format(Object value, char[] dst) {
+        if (value instanceof Integer) return formatLong((Integer) value, dst);
+        if (value instanceof Long) return formatLong((Long) value, dst);
+        if (value instanceof Double) return formatDouble((Double) value, dst);
+        if (value instanceof Float) return formatFloat((Float) value, dst);
+        if (value instanceof Short) return formatLong((Short) value, dst);
+        if (value instanceof Character) return formatLong((Character) value, dst);
+        if (value instanceof Byte) return formatLong((Byte) value, dst);
+        if (value instanceof Boolean) return formatBoolean((Boolean) value, dst);
+        throw new IllegalArgumentException("Not a primitive value: " + value);
+    }
+
+    /**
+     * Formats an integral value in decimal
+     * @param value value to format
+     * @param dst buffer of at least 20 chars
+     * @return number of chars written
+     */
+    public static int formatLong(long value, char[] dst) {
+        if (value == Long.MIN_VALUE) return formatString("-9223372036854775808", dst);
+
+        int pos = 0;
+        if (value < 0) {
+            dst[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do {
+            dst[pos++] = (char) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        // Digits were written least significant first
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            char digit = dst[i];
+            dst[i] = dst[j];
+            dst[j] = digit;
+        }
+        return pos;
+    }
+
+    public static int formatDouble(double value, char[] dst) {
+        return formatString(Double.toString(value), dst);
+    }
+
+    public static int formatFloat(float value, char[] dst) {
+        return formatString(Float.toString(value), dst);
+    }
+
+    /**
+     * Formats a boolean as true or false
+     * @param value value to format
+     * @param dst buffer of at least 5 chars
+     * @return number of chars written
+     */
+    public static int formatBoolean(boolean value, char[] dst) {
+        char[] text = value ? TRUE : FALSE;
+        System.arraycopy(text, 0, dst, 0, text.length);
+        return text.length;
+    }
+
+    /**
+     * Parses a decimal integral value, ignoring surrounding whitespace
+     * @param text buffer holding the text
+     * @param start position of the first char
+     * @param length number of chars
+     * @param min smallest accepted value
+     * @param max largest accepted value
+     * @return parsed value
+     */
+    public static long parseLong(char[] text, int start, int length, long min, long max) {
+        int end = trimEnd(text, start, start + length);
+        int pos = trimStart(text, start, end);
+        if (pos == end) throw invalid(text, start, length);
+
+        boolean negative = text[pos] == '-';
+        if (negative || text[pos] == '+') pos++;
+        if (pos == end) throw invalid(text, start, length);
+
+        // Accumulated negatively so Long.MIN_VALUE can be parsed
+        long result = 0;
+        for (; pos < end; pos++) {
+            int digit = text[pos] - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10)
+                throw invalid(text, start, length);
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) throw invalid(text, start, length);
+            result = -result;
+        }
+        if (result < min || result > max) throw invalid(text, start, length);
+        return result;
+    }
+
+    public static int parseInt(char[] text, int start, int length) {
+        return (int) parseLong(text, start, length, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public static short parseShort(char[] text, int start, int length) {
+        return (short) parseLong(text, start, length, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    public static byte parseByte(char[] text, int start, int length) {
+        return (byte) parseLong(text, start, length, Byte.MIN_VALUE, Byte.MAX_VALUE);
+    }
+
+    public static char parseChar(char[] text, int start, int length) {
+        return (char) parseLong(text, start, length, Character.MIN_VALUE, Character.MAX_VALUE);
+    }
+
+    public static double parseDouble(char[] text, int start, int length) {
+        return Double.parseDouble(new String(text, start, length)); // Handles surrounding whitespace
+    }
+
+    public static float parseFloat(char[] text, int start, int length) {
+        return Float.parseFloat(new String(text, start, length));
+    }
+
+    /**
+     * Parses true or false (in any case), ignoring surrounding whitespace
+     * @param text buffer holding the text
+     * @param start position of the first char
+     * @param length number of chars
+     * @return parsed value
+     */
+    public static boolean parseBoolean(char[] text, int start, int length) {
+        int end = trimEnd(text, start, start + length);
+        int pos = trimStart(text, start, end);
+        if (matches(TRUE, text, pos, end)) return true;
+        if (matches(FALSE, text, pos, end)) return false;
+        throw invalid(text, start, length);
+    }
+
+    private static boolean matches(char[] word, char[] text, int pos, int end) {
+        if (end - pos != word.length) return false;
+        for (int i = 0; i < word.length; i++) {
+            if (Character.toLowerCase(text[pos + i]) != word[i]) return false;
+        }
+        return true;
+    }
+
+    private static int formatString(String s, char[] dst) {
+        s.getChars(0, s.length(), dst, 0);
+        return s.length();
+    }
+
+    private static int trimStart(char[] text, int pos, int end) {
+        while (pos < end && Character.isWhitespace(text[pos])) pos++;
+        return pos;
+    }
+
+    private static int trimEnd(char[] text, int start, int end) {
+        while (end > start && Character.isWhitespace(text[end - 1])) end--;
+        return end;
+    }
+
+    private static NumberFormatException invalid(char[] text, int start, int length) {
+        return new NumberFormatException("Invalid value \"" + new String(text, start, length) + "\"");
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Receive server that stays up and accepts many concurrent senders
+ * Each connection is handled on its own (virtual, where the JDK supports it) thread with its own
+ * Deserializer, and every decoded frame is handed to one shared sink
+ *
+ * Limits:
+ *      - Connections: no new connection is accepted while the maximum are open
+ *      - In-flight bytes: frames being read or decoded across all connections share a byte budget,
+ *        so a burst from many producers waits instead of exhausting the heap. A compressed frame
+ *        is charged its own length and then its inflated bytes as they are produced. Buffers a large
+ *        frame grew are dropped before its bytes are returned to the budget, so idle
+ *        connections do not keep that memory
+ *
+ * @author Sukhjot Sekhon
+ */
+public class ReceiveServer implements Closeable {
+    private final ServerSocket receiveServer;
+    private final Consumer<HashMap<Integer, Object>> sink;
+    private final int maxInFlightBytes;
+    private final Semaphore connectionPermits;
+    private final Semaphore bytePermits;
+    private final ExecutorService connectionExecutor = newThreadPerConnectionExecutor();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    /**
+     * Binds the server socket
+     * @param port port to listen on
+     * @param maxConnections maximum number of concurrently open connections
+     * @param maxInFlightBytes maximum frame bytes, compressed and inflated, being read or decoded at once
+     * @param sink receives the HashMap of deserialized objects of every frame; must be thread-safe
+     */
+    public ReceiveServer(int port, int maxConnections, int maxInFlightBytes,
+                         Consumer<HashMap<Integer, Object>> sink) throws IOException {
+        this.sink = sink;
+        this.maxInFlightBytes = maxInFlightBytes;
+        connectionPermits = new Semaphore(maxConnections);
+        bytePermits = new Semaphore(maxInFlightBytes);
+        receiveServer = new ServerSocket(port, Math.max(50, maxConnections));
+    }
+
+    /**
+     * Starts accepting connections on a background thread
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "ReceiveServer-accept-" + getPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops accepting connections and waits briefly for open connections to finish
+     */
+    public void close() throws IOException {
+        running = false;
+        receiveServer.close();
+        connectionExecutor.shutdown();
+        try {
+            if (!connectionExecutor.awaitTermination(5, TimeUnit.SECONDS)) connectionExecutor.shutdownNow();
+        } catch (InterruptedException e) {
+            connectionExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return receiveServer.getLocalPort();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                connectionPermits.acquire(); // Leaves further senders in the backlog while full
+                Socket sock;
+                try {
+                    sock = receiveServer.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                activeConnections.incrementAndGet();
+                connectionExecutor.execute(() -> handleConnection(sock));
+            } catch (SocketException e) {
+                if (running) e.printStackTrace(); // Otherwise the server socket was closed
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads and decodes frames from one sender until it closes the connection
+     * @param sock connection to the sender
+     */
+    private void handleConnection(Socket sock) {
+        ConnectionEvent event = new ConnectionEvent(ConnectionEvent.RECEIVE, sock.getRemoteSocketAddress());
+        try (Socket connection = sock;
+             DataInputStream frameStream = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+            int accepted = FrameProtocol.acceptOptions(FrameProtocol.readHeader(frameStream));
+            OutputStream replyStream = connection.getOutputStream();
+            replyStream.write(accepted);
+            replyStream.flush();
+
+            Deserializer deserializer = FrameProtocol.newDeserializer(accepted); // Independent state per connection
+            FrameDecoder decoder = new FrameDecoder();
+            FrameBuffer frame = new FrameBuffer();
+            FramePermits permits = new FramePermits();
+
+            int length;
+            while ((length = FrameBuffer.readLength(frameStream)) >= 0) {
+                try {
+                    permits.reserve(length);
+                    frame.fill(frameStream, length);
+                    event.count(1, 4 + length);
+                    InputStream graph = decoder.decode(frame.array(), length, permits);
+                    if (graph != null) sink.accept(FrameProtocol.readGraph(deserializer, graph));
+                } finally {
+                    frame.trim();
+                    decoder.trim();
+                    permits.release();
+                }
+            }
+        } catch (IOException e) {
+            if (running) System.out.println("Connection from " + sock.getRemoteSocketAddress() + " failed: " + e);
+        } finally {
+            event.finish();
+            activeConnections.decrementAndGet();
+            connectionPermits.release();
+        }
+    }
+
+    /**
+     * Bytes of the in-flight budget held by the frame a connection is reading and decoding
+     * A frame holds at most the whole budget, so one larger than the budget still gets through
+     */
+    private final class FramePermits implements FrameDecoder.Budget {
+        private int held;
+
+        public void reserve(int bytes) throws IOException {
+            int wanted = (int) Math.min((long) held + bytes, maxInFlightBytes) - held;
+            if (wanted <= 0) return;
+            if (bytePermits.tryAcquire(wanted)) {
+                held += wanted;
+                return;
+            }
+            // Waiting while holding permits could deadlock with other connections doing the same
+            int total = held + wanted;
+            bytePermits.release(held);
+            held = 0;
+            try {
+                bytePermits.acquire(total);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the in-flight byte budget");
+            }
+            held = total;
+        }
+
+        void release() {
+            bytePermits.release(held);
+            held = 0;
+        }
+    }
+
+    /**
+     * Creates an executor starting one thread per connection
+     * Uses virtual threads when the running JDK provides them and platform daemon threads otherwise
+     * @return executor for connection handlers
+     */
+    private static ExecutorService newThreadPerConnectionExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (Throwable e) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "ReceiveServer-connection-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+
+/**
+ * Codec that walks the fields of a class through their FieldAccessors
+ * Used for every class unless a generated codec replaces it
+ *
+ * @author Sukhjot Sekhon
+ */
+final class ReflectiveClassCodec implements ClassCodec {
+    private final FieldAccessor[] fields;
+
+    ReflectiveClassCodec(ClassDescriptor descriptor) {
+        this.fields = descriptor.getFields();
+    }
+
+    public void writeFields(Object obj, FieldWriter writer, References references) throws IOException {
+        for (FieldAccessor field : fields) {
+            writer.beginField(field);
+            Class type = field.getType();
+            if (!type.isPrimitive()) references.writeReference(field.get(obj), writer);
+            else if (type == int.class) writer.writeInt(field.getInt(obj));
+            else if (type == long.class) writer.writeLong(field.getLong(obj));
+            else if (type == double.class) writer.writeDouble(field.getDouble(obj));
+            else if (type == float.class) writer.writeFloat(field.getFloat(obj));
+            else if (type == short.class) writer.writeShort(field.getShort(obj));
+            else if (type == char.class) writer.writeChar(field.getChar(obj));
+            else if (type == byte.class) writer.writeByte(field.getByte(obj));
+            else writer.writeBoolean(field.getBoolean(obj));
+            writer.endField();
+        }
+    }
+
+    public void setInt(Object obj, int index, int value) { fields[index].setInt(obj, value); }
+
+    public void setLong(Object obj, int index, long value) { fields[index].setLong(obj, value); }
+
+    public void setDouble(Object obj, int index, double value) { fields[index].setDouble(obj, value); }
+
+    public void setFloat(Object obj, int index, float value) { fields[index].setFloat(obj, value); }
+
+    public void setShort(Object obj, int index, short value) { fields[index].setShort(obj, value); }
+
+    public void setChar(Object obj, int index, char value) { fields[index].setChar(obj, value); }
+
+    public void setByte(Object obj, int index, byte value) { fields[index].setByte(obj, value); }
+
+    public void setBoolean(Object obj, int index, boolean value) { fields[index].setBoolean(obj, value); }
+
+    public void setReference(Object obj, int index, Object value) { fields[index].set(obj, value); }
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of one serialization: the ID counter, the objects given an ID, the objects waiting to be
+ * written, and a buffer a graph can be written to
+ * A session is used by one thread at a time and reset between graphs, so its tables and buffer
+ * are reused instead of allocated again for every graph (see SessionPool)
+ *
+ * @author Sukhjot Sekhon
+ */
+public final class SerializationSession implements ClassCodec.References {
+    private static final int MAX_RETAINED_OBJECTS = 64 * 1024; // Larger tables are dropped on reset instead of cleared
+    private static final int ID_BLOCK_SIZE = 256; // IDs a worker claims at a time
+
+    private IdentityHandleTable handles = new IdentityHandleTable(); // Objects given an ID, compared by identity
+    private final ArrayDeque<Object> pending = new ArrayDeque<>(); // Objects given an ID but not yet written
+    private int lastID; // Last ID given out
+    private FrameBuffer buffer = new FrameBuffer();
+    private BinaryGraphWriter binaryWriter; // Created for the first binary graph streamed
+    private int objectsWritten; // Counted for the metrics
+    private long fieldsWritten;
+
+    // Set while this session is one of several workers writing parts of the same graph
+    private ConcurrentIdentityHandleTable sharedHandles; // Objects claimed by any worker
+    private AtomicInteger sharedIds; // Start of the next unclaimed block of IDs
+    private int nextID; // Next ID of this worker's current block
+    private int blockEnd;
+
+    /**
+     * Makes this session a worker writing part of a graph alongside other workers until it is reset
+     * Every object is written by the first worker to reach it; the others only reference it
+     * @param sharedHandles objects claimed by any of the workers and their IDs
+     * @param sharedIds next free ID, handed out to workers in blocks so their IDs never overlap
+     */
+    void shareGraph(ConcurrentIdentityHandleTable sharedHandles, AtomicInteger sharedIds) {
+        this.sharedHandles = sharedHandles;
+        this.sharedIds = sharedIds;
+    }
+
+    /**
+     * Gets the ID of a referenced object, giving it the next ID and queueing it to be written if it is new
+     * @param obj object being referenced
+     * @return ID of the object
+     */
+    public int reference(Object obj) {
+        int handle = handles.get(obj);
+        if (handle != IdentityHandleTable.NOT_FOUND) return handle;
+
+        if (sharedHandles == null) {
+            handle = ++lastID;
+        } else {
+            if (nextID == blockEnd) {
+                nextID = sharedIds.getAndAdd(ID_BLOCK_SIZE);
+                blockEnd = nextID + ID_BLOCK_SIZE;
+            }
+            int owner = sharedHandles.putIfAbsent(obj, nextID);
+            if (owner != ConcurrentIdentityHandleTable.NOT_FOUND) {
+                // Another worker already claimed it and writes it
+                handles.put(obj, owner);
+                return owner;
+            }
+            handle = nextID++;
+        }
+        handles.put(obj, handle);
+        pending.add(obj);
+        return handle;
+    }
+
+    /**
+     * Writes a reference to an object, or null
+     * Primitives never get here; they are written by a ClassCodec or by writePackedArray
+     * @param obj object to reference
+     * @param writer receives the reference, such as a GraphWriter writing it in a format
+     */
+    public void writeReference(Object obj, FieldWriter writer) throws IOException {
+        if (obj == null) writer.writeNull();
+        else writer.writeReference(reference(obj));
+    }
+
+    /**
+     * Takes the next object that was given an ID but not written yet
+     * @return object to write, or null if every object reached has been written
+     */
+    Object nextPending() {
+        return pending.poll();
+    }
+
+    /**
+     * Gets the ID given to an object
+     * @param obj object to look up
+     * @return ID of the object or IdentityHandleTable.NOT_FOUND
+     */
+    public int idOf(Object obj) {
+        return handles.get(obj);
+    }
+
+    /**
+     * Counts an object written, for the metrics
+     */
+    void countObject() {
+        objectsWritten++;
+    }
+
+    /**
+     * Counts the fields of an object written, for the metrics
+     * @param fields number of fields written
+     */
+    void countFields(int fields) {
+        fieldsWritten += fields;
+    }
+
+    int getObjectsWritten() {
+        return objectsWritten;
+    }
+
+    long getFieldsWritten() {
+        return fieldsWritten;
+    }
+
+    /**
+     * Gets the buffer of this session; it is emptied when the session is reset
+     * @return reusable buffer to write a graph to
+     */
+    public FrameBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets a writer streaming a graph in a format
+     * Binary graphs reuse the session's writer with its buffer and class table; an XML writer is
+     * bound to the stream it was created for, so a new one is created
+     * @param out stream to write to; it is flushed but not closed
+     * @param format wire format to write
+     * @return writer for the format, valid until the session is reset
+     */
+    StreamingGraphWriter newWriter(OutputStream out, GraphFormat format) throws IOException {
+        if (format != GraphFormat.BINARY) return format.newWriter(out);
+        if (binaryWriter == null) binaryWriter = new BinaryGraphWriter(out);
+        else binaryWriter.restart(out);
+        return binaryWriter;
+    }
+
+    /**
+     * Forgets every object and empties the buffer so the session can write a new graph
+     * Tables and buffers are kept for the next graph unless an unusually large graph grew them
+     */
+    public void reset() {
+        if (handles.size() > MAX_RETAINED_OBJECTS) handles = new IdentityHandleTable();
+        else handles.clear();
+        pending.clear();
+        lastID = 0;
+        objectsWritten = 0;
+        fieldsWritten = 0;
+        buffer.trim();
+        if (binaryWriter != null) binaryWriter.restart(null);
+
+        sharedHandles = null;
+        sharedIds = null;
+        nextID = 0;
+        blockEnd = 0;
+    }
+}
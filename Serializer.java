@@ -1,176 +1,278 @@
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Map;
 import org.jdom2.*;
 import java.lang.reflect.*;
 import org.jdom2.output.*;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Serializes objects and generates an XML document
+ * Objects can be collected in a JDOM document or streamed to any OutputStream
+ * Streamed graphs are written with a session from a pool, so one serializer can be used by any
+ * number of threads at once; the JDOM document is kept by the serializer and is not thread-safe
  *
  * @author Sukhjot Sekhon
  */
 public class Serializer {
-    private static int objID = 0; // Unique object ID number for each object
-    private HashMap hMap; // HashMap containing serialized objects and their keys
-    private Document document;
+    private final SessionPool sessions; // Sessions of streamed graphs
+    private SerializationSession domSession; // Session of the JDOM document; null until an object is added
+    private DomGraphWriter domWriter;
+
+    public Serializer() {
+        this(new SessionPool());
+    }
 
     /**
-     * Serialize an object
+     * @param sessions pool the sessions of streamed graphs are taken from; can be shared by serializers
+     */
+    public Serializer(SessionPool sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * Serialize an object into the JDOM document
+     * Every call adds to the same document until the serializer is reset
      *
      * @param obj object to serialize
      * @return XML document containing serialized objects
      */
-    public Document serialize(Object obj) {
-        // Initialize on first run
-        if (objID == 0) {
-            hMap = new HashMap();
-            document = new Document();
-            Element elemRoot = new Element("serialized");
-            document.setRootElement(elemRoot);
+    public synchronized Document serialize(Object obj) {
+        if (domWriter == null) {
+            domSession = new SerializationSession();
+            domWriter = new DomGraphWriter();
+            domWriter.beginGraph();
         }
 
-        // Allows to get by Object or by ID since this implementation ensures one-to-one and onto map
-        hMap.put(objID++, obj);
-        hMap.put(obj, objID);
-
-        Class objClass = obj.getClass();
-        Element elemRoot = document.getRootElement();
-        Element elemObject = new Element("object");
-        elemObject.setAttribute("class", objClass.getName());
-        elemObject.setAttribute("id", Integer.toString(objID));
-        elemRoot.addContent(elemObject);
+        GraphEvent event = new GraphEvent(GraphEvent.SERIALIZE);
+        long start = Metrics.startTime();
+        int objects = domSession.getObjectsWritten();
+        long fields = domSession.getFieldsWritten();
+        try {
+            writeGraph(obj, domWriter, domSession);
+        } catch (IOException e) { e.printStackTrace(); }
+        objects = domSession.getObjectsWritten() - objects;
+        Metrics.graphSerialized(start, objects, domSession.getFieldsWritten() - fields);
+        event.finish(objects);
+        return domWriter.getDocument();
+    }
 
-        if (objClass.getName().equals("java.util.ArrayList"))
-            serializeArrayList(obj, elemObject);
-        else if (objClass.isArray())
-            serializeArrayObj(obj, elemObject);
-        else
-            serializeNonArrayObj(obj, elemObject);
+    /**
+     * Discards the JDOM document; the next object serialized starts a new one
+     */
+    public synchronized void reset() {
+        domSession = null;
+        domWriter = null;
+    }
 
-        outputXML(document);
-        return document;
+    /**
+     * Serialize objects by streaming XML to an output stream as the graph is walked
+     * Memory use is bounded by the objects seen rather than the size of the document
+     *
+     * @param objs root objects to serialize
+     * @param out stream to write to; it is flushed but not closed
+     */
+    public void serialize(Collection<?> objs, OutputStream out) throws IOException {
+        serialize(objs, out, GraphFormat.XML);
     }
 
     /**
-     * Serialize ArrayList objects
-     * @param obj ArrayList object to serialize
-     * @param elemObject XML element of object
+     * Serialize objects by streaming them to an output stream in the given format
+     * The binary writer and its buffer are kept with the pooled session instead of created per call
+     *
+     * @param objs root objects to serialize
+     * @param out stream to write to; it is flushed but not closed
+     * @param format wire format to write
      */
-    private void serializeArrayList(Object obj, Element elemObject) {
+    public void serialize(Collection<?> objs, OutputStream out, GraphFormat format) throws IOException {
+        SerializationSession session = sessions.acquire();
         try {
-            Method size = ArrayList.class.getMethod("size", null);
-            int length = (int) size.invoke(obj);
-            elemObject.setAttribute("length", Integer.toString(length));
-
-            Method get = ArrayList.class.getMethod("get", new Class[]{int.class});
-            for (int i = 0; i < length; i++) {
-                Object component = get.invoke(obj, i);
-                addObjElement(int.class, component, elemObject);
-            }
-        } catch (Exception e) { e.printStackTrace(); }
+            serialize(objs, session.newWriter(out, format), session);
+        } finally {
+            sessions.release(session);
+        }
     }
 
     /**
-     * Serialize Array objects
-     * @param obj Array object to serialize
-     * @param elemObject XML element of object
+     * Serialize objects to a graph writer
+     *
+     * @param objs root objects to serialize
+     * @param writer format to write the graph in
      */
-    private void serializeArrayObj(Object obj, Element elemObject) {
-        int length = Array.getLength(obj);
-        elemObject.setAttribute("length", Integer.toString(length));
-
-        Class objClass = obj.getClass();
-        Class componentType = objClass.getComponentType();
-        for (int i = 0; i < length; i++) {
-            Object component = Array.get(obj, i);
-            addObjElement(componentType, component, elemObject);
+    public void serialize(Collection<?> objs, GraphWriter writer) throws IOException {
+        SerializationSession session = sessions.acquire();
+        try {
+            serialize(objs, writer, session);
+        } finally {
+            sessions.release(session);
         }
     }
 
     /**
-     * Serialize non-ArrayList and non-Array objects
-     * @param obj object to serialize
-     * @param elemObject XML element of object
+     * Serialize objects to a graph writer with a session held by the caller
+     * The session is not reset, so objects it already holds are only referenced
+     *
+     * @param objs root objects to serialize
+     * @param writer format to write the graph in
+     * @param session session giving out the IDs, confined to the calling thread
      */
-    private void serializeNonArrayObj(Object obj, Element elemObject) {
-        Class objClass = obj.getClass();
-        Field fields[] = objClass.getDeclaredFields();
-        for (int i = 0; i < fields.length; i++) {
-            fields[i].setAccessible(true);
+    public void serialize(Collection<?> objs, GraphWriter writer, SerializationSession session) throws IOException {
+        GraphEvent event = new GraphEvent(GraphEvent.SERIALIZE);
+        long start = Metrics.startTime();
+        int objects = session.getObjectsWritten();
+        long fields = session.getFieldsWritten();
+        write(objs, writer, session);
+        objects = session.getObjectsWritten() - objects;
+        Metrics.graphSerialized(start, objects, session.getFieldsWritten() - fields);
+        event.finish(objects);
+    }
 
-            int modifiers = fields[i].getModifiers();
-            if (Modifier.isStatic(modifiers)) continue;
+    /**
+     * Writes a graph without recording it in the metrics, such as a fragment of a larger graph
+     *
+     * @param objs root objects to serialize
+     * @param writer format to write the graph in
+     * @param session session giving out the IDs, confined to the calling thread
+     */
+    void write(Collection<?> objs, GraphWriter writer, SerializationSession session) throws IOException {
+        writer.beginGraph();
+        for (Object obj : objs)
+            writeGraph(obj, writer, session);
+        writer.endGraph();
+    }
 
-            Element elemField = new Element("field");
-            elemField.setAttribute("name", fields[i].getName());
-            elemField.setAttribute("declaringclass", fields[i].getDeclaringClass().getName());
+    /**
+     * Gets the pool the sessions of streamed graphs are taken from
+     * @return session pool of this serializer
+     */
+    SessionPool getSessionPool() {
+        return sessions;
+    }
 
-            Object fieldObj = null;
-            try {
-                fieldObj = fields[i].get(obj);
-            } catch (IllegalAccessException e) { e.printStackTrace(); }
+    /**
+     * Write the current document as pretty-printed XML
+     * @param out stream to write to
+     */
+    public synchronized void outputXML(OutputStream out) throws IOException {
+        XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat());
+        outputter.output(domWriter.getDocument(), out);
+    }
 
-            Class type = fields[i].getType();
-            addObjElement(type, fieldObj, elemField);
-            elemObject.addContent(elemField);
-        }
+    /**
+     * Writes an object and every object it reaches that has not been written yet
+     * Referenced objects are given the next ID when first seen and written in that order
+     * @param obj root object to write
+     * @param writer format to write the graph in
+     * @param session session giving out the IDs
+     */
+    private void writeGraph(Object obj, GraphWriter writer, SerializationSession session) throws IOException {
+        session.reference(obj); // Queues the object unless it was already written
+        Object next;
+        while ((next = session.nextPending()) != null)
+            writeObject(next, session.idOf(next), writer, session);
     }
 
     /**
-     * Adds a value or reference to the parent element
-     * @param type the type of object
-     * @param fieldObj value to set to the object
-     * @param parentElem object or field element
+     * Writes a single object
+     * @param obj object to write
+     * @param id ID of the object
+     * @param writer format to write the object in
+     * @param session session giving out the IDs of referenced objects
      */
-    private void addObjElement(Class type, Object fieldObj, Element parentElem) {
-        // Add value if primitive
-        if (type.isPrimitive())
-            addValue(fieldObj, parentElem);
-        // Add reference if non-primitive and serialize it if it hasn't already
-        else {
-            boolean objectExists = addReference(fieldObj, parentElem);
-            if (!objectExists) serialize(fieldObj);
+    private void writeObject(Object obj, int id, GraphWriter writer, SerializationSession session) throws IOException {
+        session.countObject();
+        switch (ObjectKind.of(obj.getClass())) {
+            case ARRAY: serializeArrayObj(obj, id, writer, session); break;
+            case COLLECTION: serializeCollection((Collection) obj, id, writer, session); break;
+            case MAP: serializeMap((Map) obj, id, writer, session); break;
+            case VALUE: serializeValue(obj, id, writer); break;
+            default: serializeNonArrayObj(obj, id, writer, session); break;
         }
     }
 
     /**
-     * Adds a reference to the parent element and check if it needs to be serialized
-     * @param objToReference object with a reference object to serialize
-     * @param parentElem object or field element
-     * @return true if reference exists; false otherwise
+     * Serialize supported collections (ArrayList, LinkedList, ArrayDeque, HashSet)
+     * Each element is written as a reference in iteration order
+     * @param collection collection to serialize
+     * @param id ID of the object
+     * @param writer format to write the object in
+     * @param session session giving out the IDs of the elements
+     */
+    private void serializeCollection(Collection collection, int id, GraphWriter writer, SerializationSession session) throws IOException {
+        writer.beginObject(id, collection.getClass(), collection.size());
+        for (Object element : collection)
+            session.writeReference(element, writer);
+        writer.endObject();
+    }
+
+    /**
+     * Serialize supported maps (HashMap, TreeMap, LinkedHashMap)
+     * Each entry is written as a key reference followed by a value reference
+     * @param map map to serialize
+     * @param id ID of the object
+     * @param writer format to write the object in
+     * @param session session giving out the IDs of the keys and values
      */
-    private boolean addReference (Object objToReference, Element parentElem) {
-        Element elemReference = new Element("reference");
-        boolean objectExists = hMap.containsValue(objToReference);
-        if (objectExists) {
-            int hMapKey = (int) hMap.get(objToReference);
-            elemReference.addContent(Integer.toString(hMapKey));
-        } else {
-            elemReference.setText(Integer.toString(objID + 1));
+    private void serializeMap(Map<?, ?> map, int id, GraphWriter writer, SerializationSession session) throws IOException {
+        writer.beginObject(id, map.getClass(), map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            session.writeReference(entry.getKey(), writer);
+            session.writeReference(entry.getValue(), writer);
         }
-        parentElem.addContent(elemReference);
-        return objectExists;
+        writer.endObject();
+    }
+
+    /**
+     * Serialize boxed primitives and Strings as a single value
+     * @param obj value to serialize
+     * @param id ID of the object
+     * @param writer format to write the object in
+     */
+    private void serializeValue(Object obj, int id, GraphWriter writer) throws IOException {
+        writer.beginObject(id, obj.getClass(), -1);
+        writer.writeValue(obj);
+        writer.endObject();
     }
 
     /**
-     * Adds value to the parent element
-     * @param objToValue object with a value to serialize
-     * @param parentElem element to set the value of
+     * Serialize Array objects
+     * Primitive arrays are written as one packed block instead of element by element
+     * @param obj Array object to serialize
+     * @param id ID of the object
+     * @param writer format to write the object in
+     * @param session session giving out the IDs of the components
      */
-    private void addValue (Object objToValue, Element parentElem) {
-        Element elemValue = new Element("value");
-        elemValue.setText(objToValue.toString());
-        parentElem.addContent(elemValue);
+    private void serializeArrayObj(Object obj, int id, GraphWriter writer, SerializationSession session) throws IOException {
+        int length = Array.getLength(obj);
+        writer.beginObject(id, obj.getClass(), length);
+
+        Class objClass = obj.getClass();
+        Class componentType = objClass.getComponentType();
+        if (componentType.isPrimitive()) {
+            writer.writePackedArray(obj);
+            writer.endObject();
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            Object component = Array.get(obj, i);
+            session.writeReference(component, writer);
+        }
+        writer.endObject();
     }
 
     /**
-     * Output the document as an XML document in the cwd called "objects.xml"
-     * @param document XML document to output
+     * Serialize objects that are not arrays, collections, or values
+     * Fields (inherited ones included) are written by the codec of the class
+     * @param obj object to serialize
+     * @param id ID of the object
+     * @param writer format to write the object in
+     * @param session session giving out the IDs of the referenced objects
      */
-    private void outputXML(Document document) {
-        XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
-        FileOutputStream fileStream = new FileOutputStream("objects(send).xml");
-        out.output(document, fileStream);
+    private void serializeNonArrayObj(Object obj, int id, GraphWriter writer, SerializationSession session) throws IOException {
+        writer.beginObject(id, obj.getClass(), -1);
+        ClassDescriptor descriptor = ClassDescriptor.forClass(obj.getClass());
+        descriptor.getCodec().writeFields(obj, writer, session);
+        session.countFields(descriptor.getFields().length);
+        writer.endObject();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of SerializationSessions reused across graphs
+ * A session is confined to the thread that acquired it until it is released, so any number of
+ * threads can serialize at once, each with its own tables and buffer
+ *
+ * @author Sukhjot Sekhon
+ */
+public class SessionPool {
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<SerializationSession> sessions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates a pool keeping up to two idle sessions per processor
+     */
+    public SessionPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param maxPooled maximum number of idle sessions kept
+     */
+    public SessionPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a reset session from the pool, creating one if none is idle
+     * @return session to use until it is released
+     */
+    public SerializationSession acquire() {
+        SerializationSession session = sessions.poll();
+        if (session == null) return new SerializationSession();
+        pooled.decrementAndGet();
+        return session;
+    }
+
+    /**
+     * Resets a session and returns it to the pool
+     * @param session session taken from this pool; must not be used afterwards
+     */
+    public void release(SerializationSession session) {
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        session.reset();
+        sessions.offer(session);
+    }
+}
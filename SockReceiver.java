@@ -1,44 +1,133 @@
 import java.io.*;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.function.Consumer;
 
 /**
  * Retrieves a XML document through a network socket
+ * Objects can be deserialized directly from the socket or saved to a file
+ * Long-lived connections carry many graphs, one frame each
  *
  * @author Sukhjot Sekhon
  */
 public class SockReceiver {
 
-    private static final int BUF_SIZE = 8096;
+    private String debugTap; // File receiving a copy of everything received; null if disabled
 
+    /**
+     * Deserializes objects straight from a network socket without going through a file
+     *
+     * @param port port to listen on
+     * @param deserializer deserializer reading the document
+     * @return HashMap containing deserialized objects
+     */
+    Object receive(int port, Deserializer deserializer) throws IOException {
+        try (ServerSocket receiveServer = new ServerSocket(port)) {
+            System.out.println("Listening for connection...");
+            try (Socket sock = receiveServer.accept()) {
+                System.out.println("Connected to sender");
+
+                InputStream inStream = sock.getInputStream();
+                if (debugTap != null) inStream = new TeeInputStream(inStream, new FileOutputStream(debugTap));
+
+                try (InputStream bufInStream = new BufferedInputStream(inStream)) {
+                    Object objs = deserializer.deserialize(bufInStream);
+                    System.out.println("Objects received successfully");
+                    return objs;
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts one long-lived connection and deserializes every framed graph sent over it
+     * Returns once the sender closes the connection
+     *
+     * @param port port to listen on
+     * @param sink receives the HashMap of deserialized objects of each frame, in order
+     *             (for example BlockingQueue::add to hand them to another thread)
+     */
+    void receiveFrames(int port, Consumer<HashMap<Integer, Object>> sink) throws IOException {
+        try (ServerSocket receiveServer = new ServerSocket(port)) {
+            System.out.println("Listening for connection...");
+            try (Socket sock = receiveServer.accept()) {
+                System.out.println("Connected to sender");
+                receiveFrames(sock.getInputStream(), sock.getOutputStream(), sink);
+            }
+        }
+    }
+
+    /**
+     * Deserializes every framed graph on a connection until the sender closes it
+     *
+     * @param sockStream input stream of the connection
+     * @param replyStream output stream of the connection, used to answer the connection header
+     * @param sink receives the HashMap of deserialized objects of each frame, in order
+     */
+    void receiveFrames(InputStream sockStream, OutputStream replyStream, Consumer<HashMap<Integer, Object>> sink)
+            throws IOException {
+        InputStream inStream = sockStream;
+        if (debugTap != null) inStream = new TeeInputStream(inStream, new FileOutputStream(debugTap));
+
+        try (DataInputStream frameStream = new DataInputStream(new BufferedInputStream(inStream))) {
+            int accepted = FrameProtocol.acceptOptions(FrameProtocol.readHeader(frameStream));
+            replyStream.write(accepted);
+            replyStream.flush();
+
+            Deserializer deserializer = FrameProtocol.newDeserializer(accepted);
+            FrameDecoder decoder = new FrameDecoder();
+            FrameBuffer frame = new FrameBuffer();
+            while (frame.readFrame(frameStream)) {
+                InputStream graph = decoder.decode(frame.array(), frame.size());
+                if (graph != null) sink.accept(FrameProtocol.readGraph(deserializer, graph));
+            }
+        }
+    }
+
+    /**
+     * Sets a file that receives a copy of everything received, for debugging
+     * @param fileName file to write; null to disable
+     */
+    void setDebugTap(String fileName) {
+        debugTap = fileName;
+    }
+
+    /**
+     * Receives a file into pooled direct buffers written through a FileChannel
+     * Memory use does not depend on the size of the file
+     *
+     * @param port port to listen on
+     * @param outFile file to write
+     */
     void receive(int port, String outFile) throws IOException {
-        ServerSocket receiveServer = new ServerSocket(port);
-
-        System.out.println("Listening for connection...");
-        Socket sock = receiveServer.accept();
-        System.out.println("Connected to sender");
-
-        InputStream inStream = sock.getInputStream();
-        BufferedInputStream bufInStream = new BufferedInputStream(inStream);
-        OutputStream outStream = new FileOutputStream(outFile);
-
-        byte[] buffer = new byte[BUF_SIZE];
-        int length = 0;
-        do {
-            length = bufInStream.read(buffer);
-            System.out.println("length 1: " + length);
-            outStream.write(buffer, 0, length);
-            length = bufInStream.read(buffer);
-            System.out.println("length 1: " + length);
-        } while (0 < length);
-
-        System.out.println("File received successfully");
-
-        // Close all resources opened
-        outStream.close();
-        bufInStream.close();
-        inStream.close();
-        sock.close();
-        receiveServer.close();
+        try (ServerSocketChannel receiveServer = ServerSocketChannel.open()) {
+            receiveServer.bind(new InetSocketAddress(port));
+            System.out.println("Listening for connection...");
+            try (SocketChannel sockChannel = receiveServer.accept();
+                 FileChannel fileChannel = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                System.out.println("Connected to sender");
+
+                ByteBuffer buffer = DirectBufferPool.shared().acquire();
+                try {
+                    while (sockChannel.read(buffer) >= 0) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) fileChannel.write(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    DirectBufferPool.shared().release(buffer);
+                }
+            }
+            System.out.println("File received successfully");
+        }
     }
 }
\ No newline at end of file
@@ -1,8 +1,15 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 
 /**
  * Sends the produced XML document through a network socket
+ * Objects can be serialized directly into the socket or sent from a file
  *
  * @author Sukhjot Sekhon
  */
@@ -10,28 +17,81 @@ public class SockSender {
 
     private static final String HOST = "127.0.0.1"; // localhost IP address
 
-    void send(int port, String inFile) throws IOException {
-        File file = new File(inFile);
-        int fileLength = (int) file.length();
+    private GraphFormat format = GraphFormat.XML; // Format objects are serialized in
+    private boolean compress; // Offer compressed frames on connections opened with open
+    private String debugTap; // File receiving a copy of everything sent; null if disabled
+
+    /**
+     * Serializes objects straight into a network socket without going through a file
+     *
+     * @param port port of the receiver
+     * @param objs root objects to serialize and send
+     * @param serializer serializer producing the document
+     */
+    void send(int port, Collection<?> objs, Serializer serializer) throws IOException {
+        try (Socket sock = new Socket(HOST, port)) {
+            OutputStream outStream = new BufferedOutputStream(sock.getOutputStream());
+            if (debugTap != null) outStream = new TeeOutputStream(outStream, new FileOutputStream(debugTap));
+
+            try (OutputStream sockStream = outStream) {
+                serializer.serialize(objs, sockStream, format);
+            }
+            System.out.println("Objects sent successfully");
+        }
+    }
 
-        Socket sock = new Socket(HOST, port);
-        OutputStream outStream = sock.getOutputStream();
-        BufferedOutputStream bufOutStream = new BufferedOutputStream(outStream);
-        InputStream inStream = new FileInputStream(file);
+    /**
+     * Opens a long-lived connection that can send many object graphs as frames
+     *
+     * @param port port of the receiver
+     * @return connection to send graphs over; must be closed when done
+     */
+    GraphConnection open(int port) throws IOException {
+        return new GraphConnection(HOST, port, format, compress);
+    }
 
-        System.out.println("Outputting file " + inFile);
+    /**
+     * Sets the format objects are serialized in
+     * @param format wire format to send
+     */
+    void setFormat(GraphFormat format) {
+        this.format = format;
+    }
 
-        byte[] buffer = new byte[fileLength];
-        do {
-            bufOutStream.write(buffer, 0, inStream.read(buffer));
-        } while (0 < inStream.read(buffer));
+    /**
+     * Sets whether connections opened with open offer compressed frames
+     * @param compress true to offer compression to the receiver
+     */
+    void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Sets a file that receives a copy of everything sent, for debugging
+     * @param fileName file to write; null to disable
+     */
+    void setDebugTap(String fileName) {
+        debugTap = fileName;
+    }
+
+    /**
+     * Sends a file with FileChannel.transferTo, so the kernel copies it straight to the socket
+     * Memory use does not depend on the size of the file
+     *
+     * @param port port of the receiver
+     * @param inFile file to send
+     */
+    void send(int port, String inFile) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ);
+             SocketChannel sockChannel = SocketChannel.open(new InetSocketAddress(HOST, port))) {
+            System.out.println("Outputting file " + inFile);
 
-        System.out.println("File sent successfully");
+            long position = 0;
+            long size = fileChannel.size();
+            while (position < size)
+                position += fileChannel.transferTo(position, size - position, sockChannel);
 
-        // Close all resources opened
-        bufOutStream.close();
-        outStream.close();
-        inStream.close();
-        sock.close();
+            System.out.println("File sent successfully");
+        }
     }
-}
\ No newline at end of file
+}
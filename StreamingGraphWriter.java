@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+/**
+ * Graph writer streaming to an output, which can therefore join fragments of a graph
+ * written by several workers (see GraphWriter); writers that build the graph in memory,
+ * such as DomGraphWriter, do not implement it
+ *
+ * @author Sukhjot Sekhon
+ */
+public interface StreamingGraphWriter extends GraphWriter {
+    /**
+     * Copies a fragment written by a fragment writer of the same format into the graph
+     * Only called between objects
+     * @param fragment buffer holding the fragment
+     * @param offset start of the fragment in the buffer
+     * @param length length of the fragment
+     */
+    void writeFragment(byte[] fragment, int offset, int length) throws IOException;
+}
@@ -0,0 +1,64 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies everything read from a stream into a "tap" stream
+ * Used to dump what is received over a socket to a file for debugging
+ *
+ * @author Sukhjot Sekhon
+ */
+public class TeeInputStream extends FilterInputStream {
+    private final OutputStream tap;
+
+    /**
+     * @param in stream to read from
+     * @param tap stream receiving a copy of the data read; closed with this stream
+     */
+    public TeeInputStream(InputStream in, OutputStream tap) {
+        super(in);
+        this.tap = tap;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) tap.write(b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int length = in.read(b, off, len);
+        if (length > 0) tap.write(b, off, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Read instead of skipping so the tap sees every byte
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int length = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (length < 0) break;
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            tap.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Copies everything written to a stream into a second "tap" stream
+ * Used to dump what is sent over a socket to a file for debugging
+ *
+ * @author Sukhjot Sekhon
+ */
+public class TeeOutputStream extends FilterOutputStream {
+    private final OutputStream tap;
+
+    /**
+     * @param out stream receiving the data
+     * @param tap stream receiving a copy of the data; closed with this stream
+     */
+    public TeeOutputStream(OutputStream out, OutputStream tap) {
+        super(out);
+        this.tap = tap;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        tap.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        tap.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        tap.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            tap.close();
+        }
+    }
+}
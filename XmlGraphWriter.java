@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Streams a serialized object graph as XML while the graph is walked
+ * Produces the same elements as DomGraphWriter without holding a document in memory;
+ * output is only flushed once the graph ends
+ *
+ * A fragment writer leaves out the XML declaration and the serialized element, so the
+ * object elements of several fragments can be spliced into one document
+ *
+ * Strings XML cannot carry as text (see isXmlText) are written as a packed element holding
+ * their chars, like a packed char array
+ *
+ * @author Sukhjot Sekhon
+ */
+public class XmlGraphWriter implements StreamingGraphWriter {
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final int PACKED_CHUNK = 3 * 1024; // Bytes encoded at a time; a multiple of 3 so chunks need no padding
+
+    private final XMLStreamWriter xml;
+    private final OutputStream outStream; // Destination of spliced fragments; null when writing to a Writer
+    private final Writer outWriter;
+    private final boolean fragment;
+    private final char[] text = new char[PrimitiveCodec.MAX_LENGTH]; // Formatted primitive value
+    private byte[] packedBytes; // Created on the first packed array
+    private byte[] base64Bytes;
+    private char[] base64Chars;
+
+    /**
+     * @param out stream to write UTF-8 XML to; it is flushed but not closed
+     */
+    public XmlGraphWriter(OutputStream out) throws IOException {
+        this(out, false);
+    }
+
+    /**
+     * @param out stream to write UTF-8 XML to; it is flushed but not closed
+     * @param fragment true to write only the object elements of a fragment
+     */
+    public XmlGraphWriter(OutputStream out, boolean fragment) throws IOException {
+        try {
+            xml = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        } catch (XMLStreamException e) { throw new IOException(e); }
+        outStream = out;
+        outWriter = null;
+        this.fragment = fragment;
+    }
+
+    /**
+     * @param out writer to write XML to; it is flushed but not closed
+     */
+    public XmlGraphWriter(Writer out) throws IOException {
+        try {
+            xml = OUTPUT_FACTORY.createXMLStreamWriter(out);
+        } catch (XMLStreamException e) { throw new IOException(e); }
+        outStream = null;
+        outWriter = out;
+        fragment = false;
+    }
+
+    public void beginGraph() throws IOException {
+        if (fragment) return;
+        try {
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            xml.writeStartElement("serialized");
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void beginObject(int id, Class objClass, int length) throws IOException {
+        writeStartObject("object", id, objClass, length);
+    }
+
+    public void beginUpdate(int id, Class objClass, int length) throws IOException {
+        writeStartObject("update", id, objClass, length);
+    }
+
+    private void writeStartObject(String elemName, int id, Class objClass, int length) throws IOException {
+        try {
+            xml.writeCharacters("\n  ");
+            xml.writeStartElement(elemName);
+            xml.writeAttribute("class", objClass.getName());
+            xml.writeAttribute("id", Integer.toString(id));
+            if (length >= 0) xml.writeAttribute("length", Integer.toString(length));
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void writeRemoved(int id) throws IOException {
+        try {
+            xml.writeCharacters("\n  ");
+            xml.writeEmptyElement("removed");
+            xml.writeAttribute("id", Integer.toString(id));
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void beginField(FieldAccessor field) throws IOException {
+        try {
+            xml.writeCharacters("\n    ");
+            xml.writeStartElement("field");
+            xml.writeAttribute("name", field.getName());
+            xml.writeAttribute("declaringclass", field.getDeclaringClassName());
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void endField() throws IOException {
+        try {
+            xml.writeEndElement();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void writeValue(Object value) throws IOException {
+        if (value instanceof String) {
+            if (!isXmlText((String) value)) {
+                writePackedArray(((String) value).toCharArray());
+                return;
+            }
+            try {
+                xml.writeStartElement("value");
+                xml.writeCharacters((String) value);
+                xml.writeEndElement();
+            } catch (XMLStreamException e) { throw new IOException(e); }
+            return;
+        }
+        writeValueElement(PrimitiveCodec.format(value, text));
+    }
+
+    public void writeInt(int value) throws IOException { writeValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeLong(long value) throws IOException { writeValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeDouble(double value) throws IOException { writeValueElement(PrimitiveCodec.formatDouble(value, text)); }
+
+    public void writeFloat(float value) throws IOException { writeValueElement(PrimitiveCodec.formatFloat(value, text)); }
+
+    public void writeShort(short value) throws IOException { writeValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeChar(char value) throws IOException { writeValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeByte(byte value) throws IOException { writeValueElement(PrimitiveCodec.formatLong(value, text)); }
+
+    public void writeBoolean(boolean value) throws IOException { writeValueElement(PrimitiveCodec.formatBoolean(value, text)); }
+
+    private void writeValueElement(int length) throws IOException {
+        try {
+            xml.writeStartElement("value");
+            xml.writeCharacters(text, 0, length);
+            xml.writeEndElement();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void writePackedArray(Object array) throws IOException {
+        if (packedBytes == null) {
+            packedBytes = new byte[PACKED_CHUNK];
+            base64Bytes = new byte[PACKED_CHUNK / 3 * 4];
+            base64Chars = new char[base64Bytes.length];
+        }
+        int elementSize = PackedArrays.elementSize(array.getClass().getComponentType());
+        int perChunk = PACKED_CHUNK / elementSize;
+        int length = Array.getLength(array);
+
+        // Elements are packed and base64 encoded a chunk at a time, so no whole copy of the array is made
+        Base64.Encoder encoder = Base64.getEncoder();
+        try {
+            xml.writeStartElement("packed");
+            for (int i = 0; i < length; i += perChunk) {
+                int count = Math.min(perChunk, length - i);
+                int byteCount = count * elementSize;
+                PackedArrays.pack(array, i, count, packedBytes, 0);
+                byte[] chunk = byteCount == PACKED_CHUNK ? packedBytes : Arrays.copyOf(packedBytes, byteCount);
+                int charCount = encoder.encode(chunk, base64Bytes);
+                for (int c = 0; c < charCount; c++) base64Chars[c] = (char) base64Bytes[c];
+                xml.writeCharacters(base64Chars, 0, charCount);
+            }
+            xml.writeEndElement();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void writeReference(int id) throws IOException {
+        try {
+            xml.writeStartElement("reference");
+            xml.writeCharacters(Integer.toString(id));
+            xml.writeEndElement();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    public void writeNull() throws IOException {
+        try {
+            xml.writeEmptyElement("null");
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    /**
+     * Checks whether a string comes back unchanged from the text of an element
+     * XML 1.0 cannot hold most control characters, lone surrogates, or U+FFFE and U+FFFF at all,
+     * and parsers turn a carriage return into a line feed
+     * @param value string to write
+     * @return true if the string can be written as text
+     */
+    static boolean isXmlText(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20) {
+                if (c != '\t' && c != '\n') return false;
+            } else if (Character.isHighSurrogate(c)) {
+                if (++i == value.length() || !Character.isLowSurrogate(value.charAt(i))) return false;
+            } else if (Character.isLowSurrogate(c) || c == '\uFFFE' || c == '\uFFFF') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void endObject() throws IOException {
+        try {
+            xml.writeEndElement();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+
+    /**
+     * Copies the object elements of a fragment into the serialized element
+     * The fragment's bytes bypass the StAX writer, so everything it holds is handed to the output first:
+     * writing character content makes the StAX writer finish any start tag still open (it has to come
+     * before the text), and flush() passes all output so far to the stream. The line break written
+     * for that is whitespace between elements, which both readers skip
+     */
+    public void writeFragment(byte[] fragment, int offset, int length) throws IOException {
+        try {
+            xml.writeCharacters("\n");
+            xml.flush();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+        if (outStream != null) outStream.write(fragment, offset, length);
+        else outWriter.write(new String(fragment, offset, length, StandardCharsets.UTF_8));
+    }
+
+    public void endGraph() throws IOException {
+        try {
+            if (fragment) {
+                xml.flush();
+                return;
+            }
+            xml.writeCharacters("\n");
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+        } catch (XMLStreamException e) { throw new IOException(e); }
+    }
+}
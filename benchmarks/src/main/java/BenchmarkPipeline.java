@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import objectsharing.benchmarks.Pipeline;
+
+/**
+ * Pipeline over the serialization core, in the unnamed package so it can use the core's classes
+ *
+ * @author Sukhjot Sekhon
+ */
+public class BenchmarkPipeline implements Pipeline {
+    private static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream()); // Discards visualizations
+
+    private final Serializer serializer = new Serializer();
+    private final Deserializer deserializer = new Deserializer();
+
+    public List<Object> graph(String shape, int n) {
+        switch (shape) {
+            case "primitive": {
+                List<Object> primitives = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) primitives.add(new ObjPrimitive(i, i + 1, i + 2));
+                return primitives;
+            }
+            case "reference": {
+                List<Object> references = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) references.add(new ObjReference(new ObjPrimitive(i, i, i)));
+                return references;
+            }
+            case "primitiveArray": {
+                int[] ints = new int[n];
+                for (int i = 0; i < n; i++) ints[i] = i;
+                return Collections.singletonList(new ObjPrimitiveArray(ints));
+            }
+            case "referenceArray": {
+                Object[] elements = new Object[n];
+                for (int i = 0; i < n; i++) elements[i] = new ObjPrimitive(i, i, i);
+                return Collections.singletonList(new ObjReferenceArray(elements));
+            }
+            case "collections": {
+                ArrayList<Integer> list = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) list.add(i);
+                return Collections.singletonList(new ObjCollections(list));
+            }
+            case "deepChain": {
+                // Each object references the next, n deep
+                Object chain = new ObjPrimitive(n, n, n);
+                for (int i = 0; i < n; i++) chain = new ObjReference(chain);
+                return Collections.singletonList(chain);
+            }
+            case "wideFanOut": {
+                // One root referencing n subgraphs
+                Object[] children = new Object[n];
+                for (int i = 0; i < n; i++)
+                    children[i] = new ObjReference(new ObjReferenceArray(new Object[] {new ObjPrimitive(i, i, i)}));
+                return Collections.singletonList(new ObjReferenceArray(children));
+            }
+            case "cycle": {
+                // Ring of n objects, the last referencing the first
+                Object[][] links = new Object[n][1];
+                for (int i = 0; i < n; i++) links[i][0] = new ObjReferenceArray(links[(i + 1) % n]);
+                return Collections.singletonList(links[0][0]);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    public void serializeXml(List<Object> roots, OutputStream out) throws IOException {
+        serializer.serialize(roots, out, GraphFormat.XML);
+    }
+
+    public void serializeBinary(List<Object> roots, OutputStream out) throws IOException {
+        serializer.serialize(roots, out, GraphFormat.BINARY);
+    }
+
+    public int deserialize(InputStream in) throws IOException {
+        return ((Map<?, ?>) deserializer.deserialize(in)).size();
+    }
+
+    public int visualize(List<Object> roots) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(NULL_OUT);
+        System.setErr(NULL_OUT); // Inaccessible JDK fields are reported as stack traces
+        try {
+            Visualizer visualizer = new Visualizer();
+            for (Object root : roots) visualizer.inspect(root, true);
+            return visualizer.inspected.size();
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+}
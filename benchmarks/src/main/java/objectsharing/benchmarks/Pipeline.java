@@ -0,0 +1,51 @@
+package objectsharing.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Serialization core as seen by the benchmarks
+ * The core lives in the unnamed package, which code in a named package cannot refer to, so the
+ * benchmarks reach it through this interface; BenchmarkPipeline implements it from the unnamed package
+ *
+ * @author Sukhjot Sekhon
+ */
+public interface Pipeline {
+    /**
+     * Loads the implementation next to the serialization core
+     * @return a new pipeline with its own serializer and deserializer
+     */
+    static Pipeline create() {
+        try {
+            return (Pipeline) Class.forName("BenchmarkPipeline").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkPipeline is missing from the classpath", e);
+        }
+    }
+
+    /**
+     * Builds a graph of the sample types
+     * @param shape primitive, reference, primitiveArray, referenceArray, collections, deepChain, wideFanOut, or cycle
+     * @param size number of elements, links, or children
+     * @return roots of the graph
+     */
+    List<Object> graph(String shape, int size);
+
+    void serializeXml(List<Object> roots, OutputStream out) throws IOException;
+
+    void serializeBinary(List<Object> roots, OutputStream out) throws IOException;
+
+    /**
+     * Deserializes an XML document or binary graph
+     * @return number of objects in the graph
+     */
+    int deserialize(InputStream in) throws IOException;
+
+    /**
+     * Inspects every root with the Visualizer, discarding what it prints
+     * @return number of objects inspected
+     */
+    int visualize(List<Object> roots);
+}
@@ -0,0 +1,141 @@
+package objectsharing.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the serializers and deserializers on the sample types and on deep, wide, and cyclic graphs
+ * java.io.ObjectOutputStream and ObjectInputStream run on the same graphs as a baseline
+ *
+ * Every graph shape and size is measured in its own forked JVMs, so profiles collected on one
+ * shape do not carry over to the next. Next to each score JMH reports objectsPerSecond, the
+ * objects of the graph serialized or deserialized per second. Run with the GC profiler to get
+ * bytes allocated per operation (gc.alloc.rate.norm), and with SizeProfiler to get the bytes of
+ * the serialized form per object (bytesPerObject):
+ *
+ *      java -jar target/benchmarks.jar SerializationBenchmark -prof gc -prof objectsharing.benchmarks.SizeProfiler -p size=1000
+ *
+ * @author Sukhjot Sekhon
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xss512m") // Java serialization recurses once per link of deepChain
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    @Param({"primitive", "reference", "primitiveArray", "referenceArray", "collections", "deepChain", "wideFanOut", "cycle"})
+    public String shape;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private Pipeline pipeline;
+    private List<Object> roots;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private byte[] xml;
+    private byte[] binary;
+    private byte[] java;
+    private int objects; // Objects in the graph
+
+    /**
+     * Objects serialized or deserialized, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ObjectCounter {
+        public long objectsPerSecond;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        pipeline = Pipeline.create();
+        roots = pipeline.graph(shape, size);
+
+        pipeline.serializeXml(roots, buffer);
+        xml = buffer.toByteArray();
+        buffer.reset();
+        pipeline.serializeBinary(roots, buffer);
+        binary = buffer.toByteArray();
+        buffer.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(roots);
+        }
+        java = buffer.toByteArray();
+        objects = pipeline.deserialize(new ByteArrayInputStream(binary));
+    }
+
+    /**
+     * Records one operation on the graph in the counter and the size profiler
+     * @param bytes size of the serialized form
+     */
+    private void count(ObjectCounter counter, int bytes) {
+        counter.objectsPerSecond += objects;
+        SizeProfiler.record((double) bytes / objects);
+    }
+
+    @Benchmark
+    public void serializeXml(Blackhole blackhole, ObjectCounter counter) throws IOException {
+        buffer.reset();
+        pipeline.serializeXml(roots, buffer);
+        count(counter, buffer.size());
+        blackhole.consume(buffer.size());
+    }
+
+    @Benchmark
+    public void serializeBinary(Blackhole blackhole, ObjectCounter counter) throws IOException {
+        buffer.reset();
+        pipeline.serializeBinary(roots, buffer);
+        count(counter, buffer.size());
+        blackhole.consume(buffer.size());
+    }
+
+    @Benchmark
+    public void deserializeXml(Blackhole blackhole, ObjectCounter counter) throws IOException {
+        blackhole.consume(pipeline.deserialize(new ByteArrayInputStream(xml)));
+        count(counter, xml.length);
+    }
+
+    @Benchmark
+    public void deserializeBinary(Blackhole blackhole, ObjectCounter counter) throws IOException {
+        blackhole.consume(pipeline.deserialize(new ByteArrayInputStream(binary)));
+        count(counter, binary.length);
+    }
+
+    @Benchmark
+    public void javaSerialize(Blackhole blackhole, ObjectCounter counter) throws IOException {
+        buffer.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(roots);
+        }
+        count(counter, buffer.size());
+        blackhole.consume(buffer.size());
+    }
+
+    @Benchmark
+    public void javaDeserialize(Blackhole blackhole, ObjectCounter counter) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(java))) {
+            blackhole.consume(in.readObject());
+        }
+        count(counter, java.length);
+    }
+}
@@ -0,0 +1,49 @@
+package objectsharing.benchmarks;
+
+import java.util.Collection;
+import java.util.Collections;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports the bytes of the serialized form per object of the graph as a secondary result
+ * The size is the same every iteration, so it is averaged over them; JMH adds up auxiliary
+ * counters instead, which would multiply it by the number of iterations
+ *
+ *      java -jar target/benchmarks.jar SerializationBenchmark -prof objectsharing.benchmarks.SizeProfiler
+ *
+ * @author Sukhjot Sekhon
+ */
+public class SizeProfiler implements InternalProfiler {
+    private static volatile double bytesPerObject = Double.NaN; // NaN until a benchmark records a size
+
+    /**
+     * Records the size per object of the graph the running benchmark works on
+     * @param value bytes of the serialized form per object
+     */
+    static void record(double value) {
+        bytesPerObject = value;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Bytes of the serialized form per object of the graph";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        bytesPerObject = Double.NaN;
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                       IterationResult result) {
+        if (Double.isNaN(bytesPerObject)) return Collections.emptyList(); // Not a serialization benchmark
+        return Collections.singletonList(new ScalarResult("bytesPerObject", bytesPerObject, "B/object", AggregationPolicy.AVG));
+    }
+}
@@ -0,0 +1,52 @@
+package objectsharing.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the Visualizer on the sample types
+ * The Visualizer is quadratic in the number of objects and inspects every path through a chain
+ * again, so it only runs on small graphs, and not on deepChain or cycle
+ *
+ * @author Sukhjot Sekhon
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class VisualizerBenchmark {
+    @Param({"primitive", "reference", "primitiveArray", "referenceArray", "collections", "wideFanOut"})
+    public String shape;
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private Pipeline pipeline;
+    private List<Object> roots;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pipeline = Pipeline.create();
+        roots = pipeline.graph(shape, size);
+    }
+
+    @Benchmark
+    public void visualize(Blackhole blackhole) {
+        blackhole.consume(pipeline.visualize(roots));
+    }
+}